@@ -0,0 +1,349 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Encoder and parser for the ANVL format of the ARK service. Values are escaped in a single pass while they are written, so no intermediate
+ * strings are created per line.
+ */
+public final class ArkAnvl {
+
+    /**
+     * All metadata names known by the service, built once from the three enumerations
+     */
+    public static final Set<String> KEYS = createKeys();
+
+    private static final String ARK_PLACEHOLDER = "{pi.ark}";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final int MAX_CACHED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private ArkAnvl() {
+    }
+
+    /**
+     * @param key metadata name
+     * @return true if the name is part of one of the enumerations
+     */
+    public static boolean isKnownKey(String key) {
+        return key != null && KEYS.contains(key);
+    }
+
+    /**
+     * Checks that all names are known and no value is missing
+     *
+     * @param metadata metadata to send
+     * @throws IllegalArgumentException for an unknown name or a null value
+     */
+    public static void validate(Map<String, String> metadata) throws IllegalArgumentException {
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("Key in metadata HashMap was null");
+            }
+            if (!KEYS.contains(entry.getKey())) {
+                throw new IllegalArgumentException("Unknown key was used in metadata: " + entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Escapes a value like it's suggested in the ARKetype API documentation https://www.arketype.ch/doc/apidoc.html
+     *
+     * @param value value which may contain characters that must be escaped
+     * @return escaped value, the same instance if nothing had to be escaped
+     */
+    public static String escape(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (mustEscape(value.charAt(i))) {
+                StringBuilder sb = new StringBuilder(length + 16);
+                appendEscaped(sb, value);
+                return sb.toString();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Appends the escaped value to the builder
+     *
+     * @param sb target
+     * @param value unescaped value
+     */
+    public static void appendEscaped(StringBuilder sb, String value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (mustEscape(c)) {
+                sb.append(value, start, i).append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                start = i + 1;
+            }
+        }
+        sb.append(value, start, length);
+    }
+
+    /**
+     * Creates the ANVL body in a buffer that is reused by the calling thread
+     *
+     * @param metadata names and values
+     * @param ark ARK that replaces {pi.ark} in the _target, can be null
+     * @return ANVL body
+     * @throws IllegalArgumentException if a value is null
+     */
+    public static String encode(Map<String, String> metadata, String ark) throws IllegalArgumentException {
+        StringBuilder sb = buffers.get();
+        sb.setLength(0);
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            String value = resolveValue(entry.getKey(), entry.getValue(), ark);
+            sb.append(entry.getKey()).append(": ");
+            appendEscaped(sb, value);
+            sb.append('\n');
+        }
+        String body = sb.toString();
+        if (sb.capacity() > MAX_CACHED_BUFFER) {
+            buffers.remove();
+        }
+        return body;
+    }
+
+    /**
+     * @param metadata names and values
+     * @param ark ARK that replaces {pi.ark} in the _target, can be null
+     * @return number of bytes of the UTF-8 encoded ANVL body
+     * @throws IllegalArgumentException if a value is null
+     */
+    static long encodedLength(Map<String, String> metadata, String ark) throws IllegalArgumentException {
+        long length = 0;
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            String value = resolveValue(entry.getKey(), entry.getValue(), ark);
+            length += utf8Length(entry.getKey(), false) + 3 + utf8Length(value, true);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the UTF-8 encoded ANVL body directly to the stream
+     *
+     * @param metadata names and values
+     * @param ark ARK that replaces {pi.ark} in the _target, can be null
+     * @param out target stream, should be buffered
+     * @throws IOException
+     */
+    static void write(Map<String, String> metadata, String ark, OutputStream out) throws IOException {
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            String value = resolveValue(entry.getKey(), entry.getValue(), ark);
+            writeUtf8(out, entry.getKey(), false);
+            out.write(':');
+            out.write(' ');
+            writeUtf8(out, value, true);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Reads an ANVL body line by line and passes every name with its unescaped value to the consumer. Continuation lines that start with
+     * whitespace are appended to the previous value, empty lines and comments are skipped.
+     *
+     * @param reader source, is not closed
+     * @param consumer receives name and value
+     * @throws IOException
+     */
+    public static void parse(Reader reader, BiConsumer<String, String> consumer) throws IOException {
+        char[] chunk = new char[512];
+        StringBuilder line = new StringBuilder(128);
+        String key = null;
+        StringBuilder value = new StringBuilder(128);
+        boolean lastWasCr = false;
+        int read;
+        while ((read = reader.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = chunk[i];
+                if (c == '\n' || c == '\r') {
+                    if (c == '\n' && lastWasCr) {
+                        lastWasCr = false;
+                        continue;
+                    }
+                    lastWasCr = c == '\r';
+                    key = parseLine(line, key, value, consumer);
+                    line.setLength(0);
+                } else {
+                    lastWasCr = false;
+                    line.append(c);
+                }
+            }
+        }
+        key = parseLine(line, key, value, consumer);
+        if (key != null) {
+            consumer.accept(key, value.toString());
+        }
+    }
+
+    /**
+     * @param body ANVL body
+     * @return names and unescaped values in the order of the body
+     */
+    public static LinkedHashMap<String, String> parse(String body) {
+        LinkedHashMap<String, String> metadata = new LinkedHashMap<>();
+        try {
+            parse(new StringReader(body), metadata::put);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return metadata;
+    }
+
+    /**
+     * Handles one complete line
+     *
+     * @return name of the entry that is still open
+     */
+    private static String parseLine(StringBuilder line, String key, StringBuilder value, BiConsumer<String, String> consumer) {
+        int length = line.length();
+        if (length == 0 || line.charAt(0) == '#') {
+            return key;
+        }
+        char first = line.charAt(0);
+        if ((first == ' ' || first == '\t') && key != null) {
+            // continuation line
+            int start = 0;
+            while (start < length && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            value.append(' ');
+            appendUnescaped(value, line, start, length);
+            return key;
+        }
+        int colon = indexOf(line, ':');
+        if (colon < 0) {
+            return key;
+        }
+        if (key != null) {
+            consumer.accept(key, value.toString());
+        }
+        int start = colon + 1;
+        while (start < length && line.charAt(start) == ' ') {
+            start++;
+        }
+        value.setLength(0);
+        appendUnescaped(value, line, start, length);
+        return line.substring(0, colon).trim();
+    }
+
+    private static void appendUnescaped(StringBuilder target, CharSequence source, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '%' && i + 2 < end) {
+                int high = Character.digit(source.charAt(i + 1), 16);
+                int low = Character.digit(source.charAt(i + 2), 16);
+                if (high >= 0 && low >= 0) {
+                    target.append((char) (high << 4 | low));
+                    i += 2;
+                    continue;
+                }
+            }
+            target.append(c);
+        }
+    }
+
+    private static int indexOf(CharSequence sequence, char c) {
+        for (int i = 0; i < sequence.length(); i++) {
+            if (sequence.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String resolveValue(String key, String value, String ark) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value in metadata HashMap was null");
+        }
+        if (ark != null && ArkInternalEnumeration._target.toString().equals(key) && value.contains(ARK_PLACEHOLDER)) {
+            return value.replace(ARK_PLACEHOLDER, ark);
+        }
+        return value;
+    }
+
+    private static boolean mustEscape(char c) {
+        return c == '%' || c == '\n' || c == '\r' || c == ':';
+    }
+
+    private static long utf8Length(String value, boolean escape) {
+        long length = 0;
+        int size = value.length();
+        for (int i = 0; i < size; i++) {
+            char c = value.charAt(i);
+            if (escape && mustEscape(c)) {
+                length += 3;
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced by '?' like String.getBytes does
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeUtf8(OutputStream out, String value, boolean escape) throws IOException {
+        int size = value.length();
+        for (int i = 0; i < size; i++) {
+            char c = value.charAt(i);
+            if (escape && mustEscape(c)) {
+                out.write('%');
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | c >> 6);
+                out.write(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xF0 | codePoint >> 18);
+                out.write(0x80 | codePoint >> 12 & 0x3F);
+                out.write(0x80 | codePoint >> 6 & 0x3F);
+                out.write(0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xE0 | c >> 12);
+                out.write(0x80 | c >> 6 & 0x3F);
+                out.write(0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private static Set<String> createKeys() {
+        Set<String> keys = new HashSet<>();
+        for (ArkInternalEnumeration internal : ArkInternalEnumeration.values()) {
+            keys.add(internal.toString());
+        }
+        for (ArkErcEnumeration erc : ArkErcEnumeration.values()) {
+            keys.add(erc.toString());
+        }
+        for (ArkDataCiteEnumeration datacite : ArkDataCiteEnumeration.values()) {
+            keys.add(datacite.toString());
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+}
@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Request body with ANVL metadata. The body is written directly to the connection without creating the complete string first. The entity is
+ * repeatable, so failed requests can be sent again.
+ */
+public class ArkAnvlEntity extends AbstractHttpEntity {
+
+    private static final String CONTENT_TYPE = ContentType.create("text/plain", StandardCharsets.UTF_8).toString();
+
+    private final Map<String, String> metadata;
+    private final String ark;
+    private final long contentLength;
+
+    /**
+     * @param metadata names and values, must not be changed while the entity is used
+     * @param ark ARK that replaces {pi.ark} in the _target, can be null
+     * @throws IllegalArgumentException if a value is null
+     */
+    public ArkAnvlEntity(Map<String, String> metadata, String ark) throws IllegalArgumentException {
+        this.metadata = metadata;
+        this.ark = ark;
+        this.contentLength = ArkAnvl.encodedLength(metadata, ark);
+        setContentType(CONTENT_TYPE);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new ByteArrayInputStream(ArkAnvl.encode(metadata, ark).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ArkAnvl.write(metadata, ark, out);
+        out.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,241 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Registers the ARKs of many processes at once. The METS files are read and written by a bounded number of worker threads that share one
+ * pooled {@link ArkRestClient}.
+ */
+@Log4j2
+public class ArkBatchRegistrar {
+
+    // registrations started by batch steps, the other steps of the batch take their result from them
+    private static final Map<Integer, BatchRun> batchRuns = new HashMap<>();
+    private static final long BATCH_RUN_RETENTION = TimeUnit.HOURS.toMillis(1);
+
+    private final ArkProcessRegistrar registrar;
+    private final int threads;
+
+    /**
+     * @param config plugin configuration used for all processes
+     * @param threads maximum number of processes handled in parallel
+     */
+    public ArkBatchRegistrar(ArkPluginConfiguration config, int threads) {
+        this(new ArkProcessRegistrar(config, config.createClient()), threads);
+    }
+
+    public ArkBatchRegistrar(ArkProcessRegistrar registrar, int threads) {
+        this.registrar = registrar;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Registers the ARKs of all processes of the given Goobi batch
+     *
+     * @param batchId id of the batch
+     * @param step step that triggered the registration, it is passed to the process it belongs to
+     * @return outcome of all processes
+     */
+    public ArkBatchResult registerBatch(int batchId, Step step) {
+        return register(ProcessManager.getIdsForFilter("prozesse.batchID = " + batchId), step);
+    }
+
+    /**
+     * Registers the ARKs of a selection of processes, e.g. to work off a backlog. If both a list and a filter are given, the processes of the
+     * list that match the filter are registered.
+     *
+     * @param processIds ids of the processes, can be empty
+     * @param filter Goobi process filter as SQL condition, can be null
+     * @param step step that triggered the registration, it is passed to the process it belongs to
+     * @return outcome of all processes
+     */
+    public ArkBatchResult registerSelection(List<Integer> processIds, String filter, Step step) {
+        if (filter == null || filter.isBlank()) {
+            return register(processIds, step);
+        }
+        StringBuilder query = new StringBuilder("(").append(filter).append(')');
+        if (!processIds.isEmpty()) {
+            query.append(" AND prozesse.ProzesseID IN (");
+            for (int i = 0; i < processIds.size(); i++) {
+                query.append(i == 0 ? "" : ",").append(processIds.get(i).intValue());
+            }
+            query.append(')');
+        }
+        return register(ProcessManager.getIdsForFilter(query.toString()), step);
+    }
+
+    /**
+     * Registers the process of a batch step. Goobi runs the step for every process of the batch, so only the first step registers all
+     * processes of the batch; the steps of the other processes wait for this registration and take their result from it. A step that runs
+     * again later, e.g. after an error, registers its own process only.
+     *
+     * @param config plugin configuration
+     * @param batchId id of the batch
+     * @param step step of the process
+     * @return outcome of the process of the step
+     */
+    public static ArkRegistrationResult registerBatchStep(ArkPluginConfiguration config, int batchId, Step step) {
+        int processId = step.getProcessId();
+        BatchRun run;
+        boolean owner = false;
+        synchronized (batchRuns) {
+            long now = System.currentTimeMillis();
+            batchRuns.values().removeIf(r -> r.created + BATCH_RUN_RETENTION < now);
+            run = batchRuns.get(batchId);
+            if (run == null) {
+                run = new BatchRun(now);
+                batchRuns.put(batchId, run);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                ArkBatchResult result = new ArkBatchRegistrar(config, config.getBatchThreads()).registerBatch(batchId, step);
+                ArkProcessLog.add(processId, LogType.INFO, "ARK batch registration: " + result);
+                run.result.complete(result);
+            } catch (RuntimeException e) {
+                synchronized (batchRuns) {
+                    batchRuns.remove(batchId, run);
+                }
+                run.result.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        ArkRegistrationResult result = null;
+        try {
+            ArkBatchResult batchResult = run.result.join();
+            if (run.claimed.add(processId)) {
+                result = batchResult.getResult(processId);
+            }
+        } catch (CompletionException e) {
+            log.warn("Registration of batch " + batchId + " failed, registering process " + processId + " alone", e);
+        }
+        if (result == null) {
+            // the step runs again or the process was added to the batch later
+            result = new ArkProcessRegistrar(config, config.createClient()).register(step.getProzess(), step);
+        }
+        return result;
+    }
+
+    /**
+     * Registers the ARKs of the given processes
+     *
+     * @param processIds ids of the processes
+     * @return outcome of all processes
+     */
+    public ArkBatchResult register(List<Integer> processIds) {
+        return register(processIds, null);
+    }
+
+    /**
+     * Registers the ARKs of the given processes
+     *
+     * @param processIds ids of the processes
+     * @param step step that triggered the registration, it is passed to the process it belongs to
+     * @return outcome of all processes
+     */
+    public ArkBatchResult register(List<Integer> processIds, Step step) {
+        long start = System.currentTimeMillis();
+        ArkBatchResult batchResult = new ArkBatchResult();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, processIds.size())), new WorkerThreadFactory("ark-batch-"));
+        try {
+            List<Future<?>> futures = new ArrayList<>(processIds.size());
+            for (Integer processId : processIds) {
+                futures.add(executor.submit(() -> batchResult.add(registerProcess(processId, step))));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Batch registration was interrupted");
+                    break;
+                } catch (Exception e) {
+                    log.error("Registration of process " + processIds.get(i) + " failed", e);
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    batchResult.add(new ArkRegistrationResult(processIds.get(i), ArkRegistrationResult.Outcome.FAILED, null, cause.getMessage(), 0));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (batchResult.getProcessed() < processIds.size()) {
+            // interrupted, the remaining processes are not registered
+            Set<Integer> registered = new HashSet<>();
+            for (ArkRegistrationResult result : batchResult.getResults()) {
+                registered.add(result.getProcessId());
+            }
+            for (Integer processId : processIds) {
+                if (!registered.contains(processId)) {
+                    batchResult.add(new ArkRegistrationResult(processId, ArkRegistrationResult.Outcome.FAILED, null,
+                            "Batch registration was interrupted", 0));
+                }
+            }
+        }
+        batchResult.setDurationMillis(System.currentTimeMillis() - start);
+        log.info("ARK batch registration finished: " + batchResult);
+        return batchResult;
+    }
+
+    private ArkRegistrationResult registerProcess(Integer processId, Step step) {
+        Process process = ProcessManager.getProcessById(processId);
+        if (process == null) {
+            return new ArkRegistrationResult(processId, ArkRegistrationResult.Outcome.FAILED, null, "Process not found", 0);
+        }
+        Step processStep = step != null && step.getProcessId().equals(processId) ? step : null;
+        return registrar.register(process, processStep);
+    }
+
+    /**
+     * Registration of a batch started by one of its steps
+     */
+    private static class BatchRun {
+        private final long created;
+        private final CompletableFuture<ArkBatchResult> result = new CompletableFuture<>();
+        // processes whose step took its result already
+        private final Set<Integer> claimed = ConcurrentHashMap.newKeySet();
+
+        private BatchRun(long created) {
+            this.created = created;
+        }
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * Per process outcome and aggregated throughput of a batch registration
+ */
+public class ArkBatchResult {
+
+    private final List<ArkRegistrationResult> results = Collections.synchronizedList(new ArrayList<>());
+    @Getter
+    private long durationMillis;
+
+    void add(ArkRegistrationResult result) {
+        results.add(result);
+    }
+
+    void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public List<ArkRegistrationResult> getResults() {
+        synchronized (results) {
+            return new ArrayList<>(results);
+        }
+    }
+
+    /**
+     * @param processId id of a process
+     * @return result of the process or null if it was not part of the batch
+     */
+    public ArkRegistrationResult getResult(int processId) {
+        synchronized (results) {
+            for (ArkRegistrationResult result : results) {
+                if (result.getProcessId() == processId) {
+                    return result;
+                }
+            }
+            return null;
+        }
+    }
+
+    public int getProcessed() {
+        return results.size();
+    }
+
+    public int getCount(ArkRegistrationResult.Outcome outcome) {
+        synchronized (results) {
+            int count = 0;
+            for (ArkRegistrationResult result : results) {
+                if (result.getOutcome() == outcome) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public boolean isSuccessful() {
+        return getCount(ArkRegistrationResult.Outcome.FAILED) == 0 && getCount(ArkRegistrationResult.Outcome.DEFERRED) == 0;
+    }
+
+    /**
+     * @return processes per second over the whole batch
+     */
+    public double getThroughput() {
+        if (durationMillis <= 0) {
+            return 0;
+        }
+        return getProcessed() * 1000d / durationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d processes in %d ms (%.2f/s): %d created, %d updated, %d unchanged, %d queued, %d deferred, %d failed",
+                getProcessed(), durationMillis, getThroughput(), getCount(ArkRegistrationResult.Outcome.CREATED),
+                getCount(ArkRegistrationResult.Outcome.UPDATED), getCount(ArkRegistrationResult.Outcome.UNCHANGED),
+                getCount(ArkRegistrationResult.Outcome.QUEUED), getCount(ArkRegistrationResult.Outcome.DEFERRED),
+                getCount(ArkRegistrationResult.Outcome.FAILED));
+    }
+}
@@ -0,0 +1,110 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Circuit breaker for one ARK service. After a number of consecutive transient failures all requests fail fast for a while instead of waiting
+ * for timeouts. After that time a single trial request is let through; if it succeeds the circuit is closed again.
+ */
+@Log4j2
+public class ArkCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final Map<String, ArkCircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final String name;
+    private volatile int failureThreshold;
+    private volatile long openDuration;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    // thread that sends the trial request in the half open state
+    private Thread trial;
+
+    ArkCircuitBreaker(String name, int failureThreshold, long openDuration) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Returns the JVM wide circuit breaker of a service. The thresholds of an existing breaker are updated to the given values.
+     *
+     * @param name name of the service, e.g. its URL and user
+     * @param failureThreshold number of consecutive failures that open the circuit
+     * @param openDuration time in milliseconds the circuit stays open
+     * @return circuit breaker
+     */
+    public static ArkCircuitBreaker getInstance(String name, int failureThreshold, long openDuration) {
+        ArkCircuitBreaker breaker = breakers.computeIfAbsent(name, n -> new ArkCircuitBreaker(n, failureThreshold, openDuration));
+        breaker.failureThreshold = failureThreshold;
+        breaker.openDuration = openDuration;
+        return breaker;
+    }
+
+    /**
+     * @return true if a request may be sent now
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+            state = State.HALF_OPEN;
+            trial = null;
+        }
+        if (state == State.HALF_OPEN && trial == null) {
+            trial = Thread.currentThread();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called after every request that was allowed, when its outcome was recorded. If the trial request of the calling thread ended without a
+     * recorded outcome, e.g. because of an unexpected exception, the next request is let through as trial.
+     */
+    public synchronized void endRequest() {
+        if (trial == Thread.currentThread()) {
+            trial = null;
+        }
+    }
+
+    /**
+     * Called after the service answered, even with a permanent error
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.info("ARK service " + name + " is available again, closing circuit");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trial = null;
+    }
+
+    /**
+     * Called after a transient failure like a timeout or a 503 response
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn("ARK service " + name + " failed " + consecutiveFailures + " times, opening circuit for " + openDuration + " ms");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trial = null;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,18 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * Thrown without contacting the ARK service while its circuit breaker is open
+ */
+public class ArkCircuitOpenException extends ArkServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ArkCircuitOpenException(String message) {
+        super(0, message);
+    }
+
+    @Override
+    public boolean isRetryable() {
+        return true;
+    }
+}
@@ -0,0 +1,241 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * JVM wide registry of pooled http clients. All {@link ArkRestClient} instances that talk to the same service with the same account share one
+ * client, so keep-alive connections and TLS sessions are reused between plugin executions.
+ */
+@Log4j2
+public final class ArkConnectionPool {
+
+    private static final Map<String, PooledClient> clients = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(ArkConnectionPool::shutdown, "ark-connection-pool-shutdown"));
+        ArkMetrics.gauge("ark.connections.leased", () -> sum(p -> p.connectionManager.getTotalStats().getLeased()));
+        ArkMetrics.gauge("ark.connections.available", () -> sum(p -> p.connectionManager.getTotalStats().getAvailable()));
+        ArkMetrics.gauge("ark.connections.pending", () -> sum(p -> p.connectionManager.getTotalStats().getPending()));
+        ArkMetrics.gauge("ark.async.queued", () -> sum(p -> ((ThreadPoolExecutor) p.asyncExecutor).getQueue().size()));
+    }
+
+    private ArkConnectionPool() {
+    }
+
+    /**
+     * Returns the shared client for the given service and account. A new client is created if none exists yet or if the settings have changed
+     * since the client was created. The replaced client is closed when its last request is finished.
+     *
+     * @param uri URL of the ark service
+     * @param naan Name Assigning Authority Number
+     * @param user name of the API user
+     * @param settings connection settings
+     * @return shared http client
+     */
+    public static CloseableHttpClient getClient(String uri, String naan, String user, ArkConnectionSettings settings) {
+        return getPooledClient(uri, naan, user, settings).client;
+    }
+
+    /**
+     * Returns the executor that runs the asynchronous requests for the given service and account. Its number of threads is limited by
+     * {@link ArkConnectionSettings#getAsyncConcurrency()}, further requests are queued.
+     *
+     * @param uri URL of the ark service
+     * @param naan Name Assigning Authority Number
+     * @param user name of the API user
+     * @param settings connection settings
+     * @return shared executor
+     */
+    public static ExecutorService getAsyncExecutor(String uri, String naan, String user, ArkConnectionSettings settings) {
+        return getPooledClient(uri, naan, user, settings).asyncExecutor;
+    }
+
+    static PooledClient getPooledClient(String uri, String naan, String user, ArkConnectionSettings settings) {
+        String key = uri + "|" + naan + "|" + user;
+        return clients.compute(key, (k, existing) -> {
+            if (existing != null && existing.settings.equals(settings)) {
+                return existing;
+            }
+            if (existing != null) {
+                log.info("Connection settings for " + uri + " changed, recreating connection pool");
+                // clients that still use the old pool switch to the new one with their next request
+                existing.retire();
+            }
+            return createPooledClient(key, settings);
+        });
+    }
+
+    /**
+     * Returns the current client of the account of a replaced or closed client. A new one is created with the given settings if the pool was
+     * shut down.
+     *
+     * @param replaced client that is not used anymore
+     * @return current client of the same account
+     */
+    static PooledClient getCurrent(PooledClient replaced) {
+        return clients.computeIfAbsent(replaced.key, k -> createPooledClient(k, replaced.settings));
+    }
+
+    /**
+     * Closes all pooled clients and their connections. Clients that are in use are closed when their last request is finished. Clients are
+     * created again on the next request.
+     */
+    public static void shutdown() {
+        for (String key : clients.keySet()) {
+            PooledClient pooled = clients.remove(key);
+            if (pooled != null) {
+                pooled.retire();
+            }
+        }
+    }
+
+    private static PooledClient createPooledClient(String key, ArkConnectionSettings settings) {
+        PoolingHttpClientConnectionManager connectionManager = createConnectionManager(settings);
+        return new PooledClient(key, createClient(connectionManager, settings), connectionManager, createAsyncExecutor(settings), settings);
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager(ArkConnectionSettings settings) {
+        SSLConnectionSocketFactory sslFactory = settings.getSslContext() == null ? SSLConnectionSocketFactory.getSocketFactory()
+                : new SSLConnectionSocketFactory(settings.getSslContext());
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("https", sslFactory)
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(settings.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(2000);
+        return connectionManager;
+    }
+
+    private static CloseableHttpClient createClient(PoolingHttpClientConnectionManager connectionManager, ArkConnectionSettings settings) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(settings.getConnectTimeout())
+                .setSocketTimeout(settings.getSocketTimeout())
+                .setConnectionRequestTimeout(settings.getConnectionRequestTimeout())
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getIdleTimeout(), TimeUnit.SECONDS)
+                .build();
+    }
+
+    private static ExecutorService createAsyncExecutor(ArkConnectionSettings settings) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, settings.getAsyncConcurrency()), r -> {
+            Thread thread = new Thread(r, "ark-async-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static int sum(ToIntFunction<PooledClient> value) {
+        int sum = 0;
+        for (PooledClient pooled : clients.values()) {
+            sum += value.applyAsInt(pooled);
+        }
+        return sum;
+    }
+
+    /**
+     * Http client, connection pool and executor of an account. Every request registers itself with {@link #acquire()} and
+     * {@link #release()}, a replaced client is closed when no request uses it anymore.
+     */
+    static class PooledClient {
+        private final String key;
+        private final CloseableHttpClient client;
+        private final Executor executor;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final ExecutorService asyncExecutor;
+        private final ArkConnectionSettings settings;
+        private final AtomicInteger users = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean retired;
+
+        private PooledClient(String key, CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager,
+                ExecutorService asyncExecutor, ArkConnectionSettings settings) {
+            this.key = key;
+            this.client = client;
+            this.executor = Executor.newInstance(client);
+            this.connectionManager = connectionManager;
+            this.asyncExecutor = asyncExecutor;
+            this.settings = settings;
+        }
+
+        /**
+         * Registers a request
+         *
+         * @return false if the client was replaced, the request has to use {@link ArkConnectionPool#getCurrent(PooledClient)}
+         */
+        boolean acquire() {
+            users.incrementAndGet();
+            if (retired) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Unregisters a finished request
+         */
+        void release() {
+            if (users.decrementAndGet() == 0 && retired) {
+                close();
+            }
+        }
+
+        Executor getExecutor() {
+            return executor;
+        }
+
+        ExecutorService getAsyncExecutor() {
+            return asyncExecutor;
+        }
+
+        private void retire() {
+            retired = true;
+            if (users.get() == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            asyncExecutor.shutdown();
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("Could not close pooled http client", e);
+            }
+        }
+    }
+}
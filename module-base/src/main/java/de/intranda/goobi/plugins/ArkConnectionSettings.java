@@ -0,0 +1,52 @@
+package de.intranda.goobi.plugins;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import lombok.Data;
+
+/**
+ * Settings of the pooled HTTP connection that is used by the {@link ArkRestClient}
+ */
+@Data
+public class ArkConnectionSettings {
+
+    /** maximum number of open connections in the pool */
+    private int maxTotal = 20;
+    /** maximum number of open connections per route (host) */
+    private int maxPerRoute = 10;
+    /** idle connections are closed after this many seconds */
+    private int idleTimeout = 30;
+    /** timeout in milliseconds until a connection is established */
+    private int connectTimeout = 10000;
+    /** timeout in milliseconds waiting for data */
+    private int socketTimeout = 30000;
+    /** timeout in milliseconds waiting for a free connection from the pool */
+    private int connectionRequestTimeout = 10000;
+    /** maximum number of asynchronous requests that are executed at the same time */
+    private int asyncConcurrency = 10;
+    /** maximum size of a response body in bytes, larger responses are rejected and their connection is closed */
+    private int maxResponseSize = ArkResponseHandler.DEFAULT_MAX_BODY_SIZE;
+    /** ssl context to use for https connections, the default context is used if null */
+    private SSLContext sslContext;
+
+    /**
+     * Reads the settings from the &lt;connection&gt; element of the given configuration block. Missing values keep their defaults.
+     *
+     * @param config configuration block of the plugin
+     * @return settings
+     */
+    public static ArkConnectionSettings fromConfiguration(HierarchicalConfiguration config) {
+        ArkConnectionSettings settings = new ArkConnectionSettings();
+        settings.setMaxTotal(config.getInt("connection.maxTotal", settings.getMaxTotal()));
+        settings.setMaxPerRoute(config.getInt("connection.maxPerRoute", settings.getMaxPerRoute()));
+        settings.setIdleTimeout(config.getInt("connection.idleTimeout", settings.getIdleTimeout()));
+        settings.setConnectTimeout(config.getInt("connection.connectTimeout", settings.getConnectTimeout()));
+        settings.setSocketTimeout(config.getInt("connection.socketTimeout", settings.getSocketTimeout()));
+        settings.setConnectionRequestTimeout(config.getInt("connection.connectionRequestTimeout", settings.getConnectionRequestTimeout()));
+        settings.setAsyncConcurrency(config.getInt("connection.asyncConcurrency", settings.getAsyncConcurrency()));
+        settings.setMaxResponseSize(config.getInt("connection.maxResponseSize", settings.getMaxResponseSize()));
+        return settings;
+    }
+}
@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import lombok.Getter;
+
+/**
+ * Additional ARK service account that the {@link ArkRoutingClient} can use besides the main one, e.g. a second NAAN or a secondary endpoint of
+ * the provider
+ */
+@Getter
+public class ArkEndpoint {
+
+    private final String name;
+    private final String uri;
+    private final String naan;
+    private final String apiUser;
+    private final String apiPassword;
+    /** shoulder for new ARKs, the ARKs of the endpoint start with it */
+    private final String shoulder;
+    /** share of the new ARKs minted by this endpoint relative to the other endpoints, 0 to use it only for existing ARKs and failover */
+    private final int weight;
+
+    public ArkEndpoint(String name, String uri, String naan, String apiUser, String apiPassword, String shoulder, int weight) {
+        this.name = name;
+        this.uri = uri;
+        this.naan = naan;
+        this.apiUser = apiUser;
+        this.apiPassword = apiPassword;
+        this.shoulder = shoulder;
+        this.weight = Math.max(0, weight);
+    }
+
+    /**
+     * Reads an &lt;endpoint&gt; element. Missing values are taken from the main account.
+     *
+     * @param config endpoint element
+     * @param main main account of the configuration block
+     * @return endpoint
+     */
+    public static ArkEndpoint fromConfiguration(HierarchicalConfiguration config, ArkEndpoint main) {
+        String uri = config.getString("uri", main.getUri());
+        return new ArkEndpoint(config.getString("name", uri), uri, config.getString("naan", main.getNaan()),
+                config.getString("apiUser", main.getApiUser()), config.getString("apiPassword", main.getApiPassword()),
+                config.getString("shoulder", main.getShoulder()), config.getInt("weight", 1));
+    }
+
+    /**
+     * @param ark ARK
+     * @return true if the ARK was minted by the account and shoulder of this endpoint
+     */
+    public boolean owns(String ark) {
+        String prefix = "ark:/" + naan + "/";
+        String id = ark.startsWith("ark:") ? ark : "ark:/" + ark;
+        return id.startsWith(prefix) && (shoulder == null || id.startsWith(shoulder, prefix.length()));
+    }
+
+    /**
+     * @return key of the shared connection pool, circuit breaker and health check
+     */
+    String getKey() {
+        return uri + "|" + naan + "|" + apiUser;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,18 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * Permanent error of the ARK service, e.g. 400 Bad Request or 401 Unauthorized. Sending the same request again will fail again.
+ */
+public class ArkFatalException extends ArkServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ArkFatalException(int statusCode, String message) {
+        super(statusCode, message);
+    }
+
+    @Override
+    public boolean isRetryable() {
+        return false;
+    }
+}
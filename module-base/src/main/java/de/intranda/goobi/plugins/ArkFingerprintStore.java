@@ -0,0 +1,136 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.goobi.beans.Process;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+
+/**
+ * Fingerprints of the metadata that was last sent for the ARKs of a process. The fingerprints are kept in a sidecar file in the process folder,
+ * so an update can be skipped if the metadata did not change since the last run.
+ * <p>
+ * The step and the dispatcher of the {@link ArkOutbox} can store fingerprints of the same process at the same time. Writes of a file are
+ * therefore serialized and merged with its current content.
+ */
+public class ArkFingerprintStore {
+
+    private static final String FILE_NAME = "ark_fingerprints.properties";
+
+    // locks for the sidecar files, a file always uses the same lock
+    private static final Object[] locks = new Object[64];
+
+    static {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private final Path file;
+    private final Properties fingerprints = new Properties();
+
+    private ArkFingerprintStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the fingerprints of the given process
+     *
+     * @param process process
+     * @return fingerprints, empty if the process has no sidecar file yet
+     * @throws IOException
+     * @throws SwapException
+     */
+    public static ArkFingerprintStore load(Process process) throws IOException, SwapException {
+        return load(Paths.get(process.getProcessDataDirectory(), FILE_NAME));
+    }
+
+    /**
+     * Loads the fingerprints from a sidecar file
+     *
+     * @param file sidecar file
+     * @return fingerprints, empty if the file does not exist yet
+     * @throws IOException
+     */
+    static ArkFingerprintStore load(Path file) throws IOException {
+        ArkFingerprintStore store = new ArkFingerprintStore(file);
+        synchronized (getLock(file)) {
+            read(file, store.fingerprints);
+        }
+        return store;
+    }
+
+    /**
+     * @param ark ARK
+     * @param body ANVL body that would be sent
+     * @return true if the same body was sent for this ARK before
+     */
+    public boolean isUnchanged(String ark, String body) {
+        return fingerprint(body).equals(fingerprints.getProperty(ark));
+    }
+
+    /**
+     * Remembers the body that was sent for the ARK and saves the sidecar file
+     *
+     * @param ark ARK
+     * @param body ANVL body that was sent
+     * @throws IOException
+     */
+    public void store(String ark, String body) throws IOException {
+        String fingerprint = fingerprint(body);
+        synchronized (getLock(file)) {
+            // keep the fingerprints that were stored by others since the file was loaded
+            Properties current = new Properties();
+            read(file, current);
+            current.setProperty(ark, fingerprint);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                current.store(out, "ARK metadata fingerprints");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fingerprints.putAll(current);
+        }
+    }
+
+    private static void read(Path file, Properties properties) throws IOException {
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+        }
+    }
+
+    private static Object getLock(Path file) {
+        return locks[Math.floorMod(file.toAbsolutePath().normalize().hashCode(), locks.length)];
+    }
+
+    /**
+     * @param body ANVL body
+     * @return hex encoded SHA-256 hash of the body, independent of the order of the lines
+     */
+    public static String fingerprint(String body) {
+        String[] lines = body.split("\n");
+        Arrays.sort(lines);
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import lombok.extern.log4j.Log4j2;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+import ugh.exceptions.WriteException;
+
+/**
+ * Registers ARKs for the anchor, all volumes and optionally all elements below them. The logical tree is walked once, all mints and updates are
+ * sent in parallel over the shared client and the METS file is written once at the end. Instances are stateless and can be used by several
+ * threads at the same time.
+ */
+@Log4j2
+public class ArkHierarchicalRegistrar {
+
+    private final ArkPluginConfiguration config;
+    private final ArkRestClient arkClient;
+
+    public ArkHierarchicalRegistrar(ArkPluginConfiguration config, ArkRestClient arkClient) {
+        this.config = config;
+        this.arkClient = arkClient;
+    }
+
+    /**
+     * Reads the METS file of the process, updates the existing ARKs and mints the missing ones of all elements and saves the new ARKs in the
+     * METS file. ARKs that were minted are saved even if other calls failed, so they are updated instead of minted again on the next run.
+     *
+     * @param process process to register
+     * @param step step that triggered the registration, can be null
+     * @return outcome of the registration, the ARK is the one of the first element
+     */
+    public ArkRegistrationResult register(Process process, Step step) {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        int processId = process.getId();
+        List<Task> tasks = new ArrayList<>();
+        String message = null;
+        boolean failed = false;
+        boolean deferred = false;
+        ArkMintJournal journal = null;
+
+        try {
+            long readStart = System.nanoTime();
+            ArkUghDocument document = new ArkUghDocument(process, step, config.getMetadataType());
+            List<ArkUghDocument.Element> elements = document.getElements(config.isHierarchicalIncludeChildren());
+            ArkMetrics.recordSince("ark.mets.read", readStart);
+            if (elements.isEmpty()) {
+                throw new MetadataTypeNotAllowedException(
+                        "This Metadataelement (" + config.getMetadataType() + ") is not allowed for any logical element, please update the ruleset!");
+            }
+            ArkFingerprintStore fingerprints = ArkFingerprintStore.load(process);
+            ArkIndex index = config.isIndexEnabled() ? ArkIndex.getInstance(config) : null;
+            journal = config.isJournalEnabled() ? ArkMintJournal.getInstance(config) : null;
+
+            // determine and dispatch all calls before waiting for the first one
+            long replaceStart = System.nanoTime();
+            for (ArkUghDocument.Element element : elements) {
+                ArkMetadata mdata = config.getTemplates().createMetadata(element);
+                List<String> existingArks = element.getExistingArks();
+                ArkMintJournal.Entry interrupted = journal == null || !existingArks.isEmpty() ? null
+                        : journal.findMinted(processId, element.getElementPath());
+                String unsavedArk = interrupted != null ? interrupted.getArk()
+                        : index == null || !existingArks.isEmpty() ? null : index.findUnsavedArk(processId, element.getElementPath(), existingArks);
+                if (unsavedArk != null) {
+                    // minted in an earlier run whose METS file could not be written
+                    Task task = new Task(element, unsavedArk, mdata, arkClient.updateArkAsync(unsavedArk, mdata));
+                    task.unsaved = true;
+                    task.journalId = interrupted == null ? 0 : interrupted.getId();
+                    tasks.add(task);
+                } else if (existingArks.isEmpty()) {
+                    long journalId = journal == null ? 0 : journal.begin(processId, element.getElementPath());
+                    Task task = new Task(element, null, mdata, arkClient.mintArkAsync(config.getShoulder(), mdata));
+                    task.journalId = journalId;
+                    tasks.add(task);
+                }
+                for (String existingArk : existingArks) {
+                    String body = arkClient.createMetadataBodyString(mdata, existingArk);
+                    if (!config.isForceUpdate() && fingerprints.isUnchanged(existingArk, body)) {
+                        ArkMetrics.increment("ark.updates.skipped");
+                        tasks.add(new Task(element, existingArk, mdata, null));
+                    } else if (config.isOutboxEnabled()) {
+                        ArkMetrics.increment("ark.updates.sent");
+                        ArkOutbox.getInstance(config).enqueue(processId, existingArk, mdata.toHashMap());
+                        Task task = new Task(element, existingArk, mdata, null);
+                        task.queued = true;
+                        tasks.add(task);
+                    } else {
+                        ArkMetrics.increment("ark.updates.sent");
+                        tasks.add(new Task(element, existingArk, mdata, arkClient.updateArkAsync(existingArk, mdata)));
+                    }
+                }
+            }
+            ArkMetrics.recordSince("ark.metadata.replace", replaceStart);
+
+            boolean minted = false;
+            for (Task task : tasks) {
+                if (task.future == null) {
+                    log(processId, task);
+                    continue;
+                }
+                task.joined = true;
+                try {
+                    Object value = task.future.join();
+                    if (task.ark == null) {
+                        task.ark = (String) value;
+                        if (task.journalId != 0) {
+                            journal.minted(task.journalId, task.ark);
+                        }
+                        task.element.addArk(task.ark);
+                        task.saved = true;
+                        minted = true;
+                        storeFingerprint(fingerprints, index, processId, task);
+                    } else if (Boolean.TRUE.equals(value)) {
+                        if (task.unsaved) {
+                            task.element.addArk(task.ark);
+                            task.saved = true;
+                            minted = true;
+                        }
+                        storeFingerprint(fingerprints, index, processId, task);
+                    } else {
+                        task.error = "update was rejected";
+                        failed = true;
+                    }
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    task.error = cause.getMessage();
+                    if (cause instanceof ArkIncompleteMintException) {
+                        // the ARK exists without its target, it is saved without fingerprint and updated on the next run
+                        task.ark = ((ArkIncompleteMintException) cause).getArk();
+                        if (task.journalId != 0) {
+                            journal.minted(task.journalId, task.ark);
+                        }
+                        if (index != null) {
+                            index.recordIncomplete(processId, task.element, task.ark);
+                        }
+                        task.element.addArk(task.ark);
+                        task.saved = true;
+                        minted = true;
+                    } else if (task.mint && task.journalId != 0) {
+                        journal.failed(task.journalId);
+                    }
+                    if (cause instanceof ArkCircuitOpenException) {
+                        deferred = true;
+                    } else {
+                        failed = true;
+                    }
+                }
+                log(processId, task);
+            }
+
+            // save the mets file once for all new ARKs
+            if (minted) {
+                long writeStart = System.nanoTime();
+                document.save();
+                ArkMetrics.recordSince("ark.mets.write", writeStart);
+                if (journal != null) {
+                    for (Task task : tasks) {
+                        if (task.journalId != 0 && task.saved) {
+                            journal.completed(task.journalId);
+                        }
+                    }
+                }
+            }
+        } catch (ReadException | PreferencesException | WriteException | IOException | SwapException | IllegalArgumentException
+                | MetadataTypeNotAllowedException e) {
+            log.error(e);
+            message = e.getMessage();
+            failed = true;
+            ArkProcessLog.add(processId, LogType.ERROR, e.getMessage());
+        } finally {
+            recordDispatchedMints(processId, tasks, journal);
+        }
+
+        ArkRegistrationResult.Outcome outcome = getOutcome(tasks, failed, deferred);
+        if (message == null) {
+            message = tasks.size() + " ARKs of " + countElements(tasks) + " elements";
+        }
+        ArkMetrics.recordSince("ark.registration", startNanos);
+        ArkMetrics.increment("ark.registration." + outcome.name().toLowerCase(Locale.ROOT));
+        String ark = tasks.isEmpty() ? null : tasks.get(0).ark;
+        return new ArkRegistrationResult(processId, outcome, ark, message, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Waits for the mints that were dispatched but not handled because the registration failed before, e.g. while the journal was written.
+     * Their ARKs are recorded in the journal, so the next run saves them instead of minting new ones.
+     */
+    private static void recordDispatchedMints(int processId, List<Task> tasks, ArkMintJournal journal) {
+        for (Task task : tasks) {
+            if (task.joined || !task.mint || task.future == null) {
+                continue;
+            }
+            String ark;
+            try {
+                ark = (String) task.future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                if (!(cause instanceof ArkIncompleteMintException)) {
+                    if (task.journalId != 0) {
+                        journal.failed(task.journalId);
+                    }
+                    continue;
+                }
+                ark = ((ArkIncompleteMintException) cause).getArk();
+            }
+            try {
+                if (task.journalId != 0) {
+                    journal.minted(task.journalId, ark);
+                    continue;
+                }
+            } catch (IOException e) {
+                log.error("Could not record ARK " + ark + " in the mint journal", e);
+            }
+            ArkProcessLog.add(processId, LogType.ERROR, "ARK: " + ark + " (" + task.element.getType() + ") was minted but could not be saved");
+        }
+    }
+
+    private void storeFingerprint(ArkFingerprintStore fingerprints, ArkIndex index, int processId, Task task) {
+        String body = arkClient.createMetadataBodyString(task.mdata, task.ark);
+        if (index != null) {
+            index.record(processId, task.element, task.ark, task.mdata, body);
+        }
+        try {
+            fingerprints.store(task.ark, body);
+        } catch (IOException e) {
+            // the next run sends the update again
+            log.warn("Could not store metadata fingerprint of " + task.ark, e);
+        }
+    }
+
+    private static ArkRegistrationResult.Outcome getOutcome(List<Task> tasks, boolean failed, boolean deferred) {
+        if (failed) {
+            return ArkRegistrationResult.Outcome.FAILED;
+        }
+        if (deferred) {
+            // the service is down, the remaining calls are sent on the next run
+            return ArkRegistrationResult.Outcome.DEFERRED;
+        }
+        boolean created = false;
+        boolean updated = false;
+        boolean queued = false;
+        for (Task task : tasks) {
+            if (task.queued) {
+                queued = true;
+            } else if (task.future != null && (task.mint || task.unsaved)) {
+                created = true;
+            } else if (task.future != null) {
+                updated = true;
+            }
+        }
+        if (queued) {
+            return ArkRegistrationResult.Outcome.QUEUED;
+        } else if (created) {
+            return ArkRegistrationResult.Outcome.CREATED;
+        } else if (updated) {
+            return ArkRegistrationResult.Outcome.UPDATED;
+        }
+        return ArkRegistrationResult.Outcome.UNCHANGED;
+    }
+
+    private static long countElements(List<Task> tasks) {
+        return tasks.stream().map(task -> task.element).distinct().count();
+    }
+
+    private static void log(int processId, Task task) {
+        String element = " (" + task.element.getType() + ")";
+        if (task.error != null) {
+            if (task.ark == null) {
+                ArkProcessLog.add(processId, LogType.ERROR, "ARK" + element + " could not be created: " + task.error);
+            } else {
+                ArkProcessLog.add(processId, LogType.ERROR, "ARK: " + task.ark + element + " could not be updated: " + task.error);
+            }
+        } else if (task.queued) {
+            ArkProcessLog.add(processId, LogType.INFO, "ARK: " + task.ark + element + " update was queued");
+        } else if (task.future == null) {
+            ArkProcessLog.add(processId, LogType.INFO, "ARK: " + task.ark + element + " is unchanged, no update was sent");
+        } else if (task.mint || task.unsaved) {
+            ArkProcessLog.add(processId, LogType.INFO, "ARK: " + task.ark + element + " was created successfully!");
+        } else {
+            ArkProcessLog.add(processId, LogType.INFO, "ARK: " + task.ark + element + " was updated sucecssfully");
+        }
+    }
+
+    /**
+     * Mint or update of a single ARK. Unchanged and queued updates have no future.
+     */
+    private static class Task {
+        private final ArkUghDocument.Element element;
+        private final ArkMetadata mdata;
+        private final CompletableFuture<?> future;
+        private final boolean mint;
+        private String ark;
+        private boolean queued;
+        private boolean unsaved;
+        // the result of the call was handled
+        private boolean joined;
+        // the ARK was added to the element
+        private boolean saved;
+        private long journalId;
+        private String error;
+
+        private Task(ArkUghDocument.Element element, String ark, ArkMetadata mdata, CompletableFuture<?> future) {
+            this.element = element;
+            this.ark = ark;
+            this.mdata = mdata;
+            this.future = future;
+            this.mint = ark == null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package de.intranda.goobi.plugins;
+
+import org.apache.http.client.ClientProtocolException;
+
+/**
+ * Thrown if an ARK was minted but its target could not be set afterwards. The ARK exists and has to be recorded by the caller, so it is
+ * updated instead of minted again.
+ */
+public class ArkIncompleteMintException extends ClientProtocolException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String ark;
+
+    public ArkIncompleteMintException(String ark, String message, Throwable cause) {
+        super(message, cause);
+        this.ark = ark;
+    }
+
+    /**
+     * @return ARK that was minted without its target
+     */
+    public String getArk() {
+        return ark;
+    }
+}
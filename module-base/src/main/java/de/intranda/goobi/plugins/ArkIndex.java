@@ -0,0 +1,269 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Local record of all ARKs registered by the plugin with the process and logical element they belong to, their target and the fingerprint of
+ * the metadata last sent. Lookups by ARK and by process are answered from memory.
+ * <p>
+ * The index is an append-only file in the storage folder. Every change is written as an A line and synced to disk before the call returns, so
+ * an ARK that was minted is known even if the METS file could not be written afterwards. Superseded lines are removed when the file is
+ * compacted.
+ */
+@Log4j2
+public class ArkIndex {
+
+    private static final Map<String, ArkIndex> indexes = new ConcurrentHashMap<>();
+
+    private static final int COMPACT_THRESHOLD = 10000;
+
+    static {
+        ArkMetrics.gauge("ark.index.size", () -> indexes.values().stream().mapToInt(ArkIndex::size).sum());
+    }
+
+    private final Path file;
+    private final Map<String, Entry> byArk = new ConcurrentHashMap<>();
+    private final Map<Integer, List<Entry>> byProcess = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private int writesSinceCompaction;
+
+    private ArkIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the index of the configured service. On first use the index file is read.
+     *
+     * @param config plugin configuration
+     * @return shared index
+     */
+    public static ArkIndex getInstance(ArkPluginConfiguration config) {
+        String key = config.getUri() + "|" + config.getNaan() + "|" + config.getApiUser();
+        return indexes.computeIfAbsent(key, k -> {
+            Path path = Paths.get(config.getStorageFolder(), "index_" + config.getNaan() + "_" + config.getApiUser() + ".log");
+            try {
+                return open(path);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open ARK index " + path, e);
+            }
+        });
+    }
+
+    /**
+     * Reads an index file, a missing file is created
+     *
+     * @param path index file
+     * @return index
+     * @throws IOException if the file could not be read or written
+     */
+    static ArkIndex open(Path path) throws IOException {
+        ArkIndex index = new ArkIndex(path);
+        index.load();
+        return index;
+    }
+
+    /**
+     * @param ark ARK
+     * @return entry of the ARK or null if the plugin did not register it
+     */
+    public Entry get(String ark) {
+        return byArk.get(ark);
+    }
+
+    /**
+     * @param processId id of the process
+     * @return entries of all ARKs of the process, empty if there are none
+     */
+    public List<Entry> getByProcess(int processId) {
+        List<Entry> entries = byProcess.get(processId);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        synchronized (entries) {
+            return new ArrayList<>(entries);
+        }
+    }
+
+    /**
+     * Finds an ARK that was minted for the element of a process but is missing in its METS file, because the METS file could not be written
+     * after the ARK was minted
+     *
+     * @param processId id of the process
+     * @param element path of the logical element, empty for the top element
+     * @param existingArks ARKs of the element in the METS file
+     * @return ARK that can be used instead of minting a new one or null
+     */
+    public String findUnsavedArk(int processId, String element, List<String> existingArks) {
+        for (Entry entry : getByProcess(processId)) {
+            if (entry.getElement().equals(element) && !existingArks.contains(entry.getArk())) {
+                return entry.getArk();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an ARK or replaces its entry. The entry is on disk when this method returns.
+     *
+     * @param ark ARK
+     * @param processId id of the process the ARK belongs to
+     * @param element path of the logical element, empty for the top element
+     * @param target target URL of the ARK, can be null
+     * @param fingerprint fingerprint of the metadata last sent, can be null
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized void put(String ark, int processId, String element, String target, String fingerprint) throws IOException {
+        Entry entry = new Entry(ark, processId, element, target == null ? "" : target, fingerprint == null ? "" : fingerprint);
+        append(format(entry));
+        add(entry);
+        if (++writesSinceCompaction >= COMPACT_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Records an ARK after it was minted or updated. Errors are only logged, as the ARK itself was registered successfully.
+     *
+     * @param processId id of the process the ARK belongs to
+     * @param document logical element the ARK belongs to
+     * @param ark ARK
+     * @param mdata metadata sent to the service
+     * @param body request body of the metadata
+     */
+    public void record(int processId, ArkMetsDocument document, String ark, ArkMetadata mdata, String body) {
+        String target = mdata.get(ArkInternalEnumeration._target);
+        try {
+            put(ark, processId, document.getElementPath(), target == null ? null : target.replace("{pi.ark}", ark),
+                    ArkFingerprintStore.fingerprint(body));
+        } catch (IOException e) {
+            log.warn("Could not add ARK " + ark + " to the local index", e);
+        }
+    }
+
+    /**
+     * Records an ARK that was minted but whose target could not be set. The entry has no fingerprint, so the metadata is sent again.
+     *
+     * @param processId id of the process the ARK belongs to
+     * @param document logical element the ARK belongs to
+     * @param ark ARK
+     */
+    public void recordIncomplete(int processId, ArkMetsDocument document, String ark) {
+        try {
+            put(ark, processId, document.getElementPath(), null, null);
+        } catch (IOException e) {
+            log.warn("Could not add ARK " + ark + " to the local index", e);
+        }
+    }
+
+    /**
+     * @return number of ARKs in the index
+     */
+    public int size() {
+        return byArk.size();
+    }
+
+    private void add(Entry entry) {
+        Entry previous = byArk.put(entry.getArk(), entry);
+        if (previous != null) {
+            List<Entry> entries = byProcess.get(previous.getProcessId());
+            if (entries != null) {
+                synchronized (entries) {
+                    entries.remove(previous);
+                }
+            }
+        }
+        List<Entry> entries = byProcess.computeIfAbsent(entry.getProcessId(), k -> new ArrayList<>(1));
+        synchronized (entries) {
+            entries.add(entry);
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    // a torn last line after a crash is skipped
+                    if (fields.length >= 6 && "A".equals(fields[0])) {
+                        add(new Entry(fields[1], Integer.parseInt(fields[2]), fields[3], fields[4], fields[5]));
+                    }
+                }
+            }
+            log.debug("ARK index " + file + " contains " + byArk.size() + " ARKs");
+        }
+        compact();
+    }
+
+    /**
+     * Rewrites the index file with the current entries only
+     */
+    private synchronized void compact() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Map<String, Entry> entries = new LinkedHashMap<>(byArk);
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            lines.add(format(entry));
+        }
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writesSinceCompaction = 0;
+    }
+
+    private void append(String line) throws IOException {
+        channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+    }
+
+    private static String format(Entry entry) {
+        return "A\t" + entry.getArk() + "\t" + entry.getProcessId() + "\t" + clean(entry.getElement()) + "\t" + clean(entry.getTarget()) + "\t"
+                + entry.getFingerprint();
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * ARK with the process and the logical element it belongs to
+     */
+    @Getter
+    public static class Entry {
+        private final String ark;
+        private final int processId;
+        private final String element;
+        private final String target;
+        private final String fingerprint;
+
+        private Entry(String ark, int processId, String element, String target, String fingerprint) {
+            this.ark = ark;
+            this.processId = processId;
+            this.element = element;
+            this.target = target;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Metadata of an ARK. Names can only be set via the three enumerations, so the metadata does not need to be validated before it is sent.
+ */
+public class ArkMetadata {
+
+    private final HashMap<String, String> values;
+
+    private ArkMetadata(HashMap<String, String> values) {
+        this.values = values;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param name internal name
+     * @return value or null
+     */
+    public String get(ArkInternalEnumeration name) {
+        return values.get(name.toString());
+    }
+
+    /**
+     * @param name ERC name
+     * @return value or null
+     */
+    public String get(ArkErcEnumeration name) {
+        return values.get(name.toString());
+    }
+
+    /**
+     * @param name DataCite name
+     * @return value or null
+     */
+    public String get(ArkDataCiteEnumeration name) {
+        return values.get(name.toString());
+    }
+
+    /**
+     * @return read-only view of all names and values
+     */
+    public Map<String, String> asMap() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return modifiable copy for the methods that take a HashMap
+     */
+    public HashMap<String, String> toHashMap() {
+        return new HashMap<>(values);
+    }
+
+    /**
+     * @return builder that starts with the values of this metadata
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.values.putAll(values);
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+
+    public static class Builder {
+
+        private final HashMap<String, String> values = new HashMap<>();
+
+        private Builder() {
+        }
+
+        public Builder set(ArkInternalEnumeration name, String value) {
+            return put(name.toString(), value);
+        }
+
+        public Builder set(ArkErcEnumeration name, String value) {
+            return put(name.toString(), value);
+        }
+
+        public Builder set(ArkDataCiteEnumeration name, String value) {
+            return put(name.toString(), value);
+        }
+
+        /**
+         * @throws IllegalArgumentException if a value is null
+         */
+        public ArkMetadata build() throws IllegalArgumentException {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    throw new IllegalArgumentException("Value of " + entry.getKey() + " was null");
+                }
+            }
+            return new ArkMetadata(new HashMap<>(values));
+        }
+
+        private Builder put(String name, String value) {
+            values.put(name, value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package de.intranda.goobi.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Size bounded cache of the metadata responses of the ARK service. Entries are evicted in least recently used order and are fresh for a fixed
+ * time. Stale entries keep their ETag and Last-Modified header, so the client can revalidate them with a conditional request instead of
+ * downloading the metadata again.
+ * <p>
+ * All clients of an account share one cache, updates and deletions through any of them remove the entry. Every removal gets a new version
+ * of the ARK; a response that was requested before this version is not stored, so a read that overlaps an update cannot put the old metadata
+ * back into the cache.
+ */
+public class ArkMetadataCache {
+
+    private static final Map<String, ArkMetadataCache> caches = new ConcurrentHashMap<>();
+
+    static {
+        ArkMetrics.gauge("ark.cache.size", () -> caches.values().stream().mapToInt(ArkMetadataCache::size).sum());
+    }
+
+    private final Map<String, Entry> entries;
+    // version of the last removal of the recently changed ARKs, older removals are covered by evictedVersion
+    private final Map<String, Long> versions;
+    private final AtomicLong clock = new AtomicLong();
+    private long evictedVersion;
+    private volatile int maxEntries;
+    private volatile long ttlMillis;
+    @Getter
+    private volatile boolean conditional;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of cached ARKs
+     * @param ttlMillis time in milliseconds an entry is fresh
+     * @param conditional true to revalidate stale entries with a conditional request
+     */
+    public ArkMetadataCache(int maxEntries, long ttlMillis, boolean conditional) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMillis = ttlMillis;
+        this.conditional = conditional;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ArkMetadataCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.versions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > ArkMetadataCache.this.maxEntries) {
+                    evictedVersion = Math.max(evictedVersion, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache of an account. The settings of an existing cache are updated.
+     *
+     * @param key uri, NAAN and user of the account
+     * @param maxEntries maximum number of cached ARKs
+     * @param ttlMillis time in milliseconds an entry is fresh
+     * @param conditional true to revalidate stale entries with a conditional request
+     * @return shared cache
+     */
+    public static ArkMetadataCache getInstance(String key, int maxEntries, long ttlMillis, boolean conditional) {
+        ArkMetadataCache cache = caches.computeIfAbsent(key, k -> new ArkMetadataCache(maxEntries, ttlMillis, conditional));
+        cache.maxEntries = Math.max(1, maxEntries);
+        cache.ttlMillis = ttlMillis;
+        cache.conditional = conditional;
+        return cache;
+    }
+
+    /**
+     * Looks up an ARK and counts a hit if the entry is fresh, a miss otherwise
+     *
+     * @param ark ARK
+     * @return entry, can be stale, or null if the ARK is not cached
+     */
+    public Entry lookup(String ark) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(ark);
+        }
+        if (entry != null && entry.isFresh()) {
+            hits.incrementAndGet();
+            ArkMetrics.increment("ark.cache.hit");
+        } else {
+            misses.incrementAndGet();
+            ArkMetrics.increment("ark.cache.miss");
+        }
+        return entry;
+    }
+
+    /**
+     * @return current version, to be read before the metadata is requested and passed to {@link #put}
+     */
+    public long getVersion() {
+        return clock.get();
+    }
+
+    /**
+     * Stores the metadata of an ARK unless the ARK was changed after the request was sent
+     *
+     * @param ark ARK
+     * @param body response body
+     * @param etag ETag header of the response, can be null
+     * @param lastModified Last-Modified header of the response, can be null
+     * @param version version read before the metadata was requested
+     * @return true if the metadata was stored
+     */
+    public boolean put(String ark, String body, String etag, String lastModified, long version) {
+        Entry entry = new Entry(body, etag, lastModified, System.currentTimeMillis() + ttlMillis);
+        synchronized (entries) {
+            Long removed = versions.get(ark);
+            if ((removed == null ? evictedVersion : removed) > version) {
+                ArkMetrics.increment("ark.cache.outdated");
+                return false;
+            }
+            entries.put(ark, entry);
+            return true;
+        }
+    }
+
+    /**
+     * Marks a stale entry as fresh again after the service confirmed that it did not change
+     *
+     * @param ark ARK
+     * @param entry entry that was revalidated
+     * @param version version read before the conditional request was sent
+     */
+    public void revalidated(String ark, Entry entry, long version) {
+        revalidations.incrementAndGet();
+        ArkMetrics.increment("ark.cache.revalidated");
+        put(ark, entry.getBody(), entry.getEtag(), entry.getLastModified(), version);
+    }
+
+    /**
+     * Removes an ARK, its metadata was changed
+     *
+     * @param ark ARK
+     */
+    public void invalidate(String ark) {
+        synchronized (entries) {
+            entries.remove(ark);
+            versions.put(ark, clock.incrementAndGet());
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            versions.clear();
+            evictedVersion = clock.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return share of lookups that were answered from the cache
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d hits, %d misses (%.1f%%), %d revalidated, %d evicted", size(), getHits(), getMisses(),
+                getHitRate() * 100, getRevalidations(), getEvictions());
+    }
+
+    /**
+     * Cached response of the service
+     */
+    @Getter
+    public static class Entry {
+        private final String body;
+        private final String etag;
+        private final String lastModified;
+        private final long expires;
+
+        private Entry(String body, String etag, String lastModified, long expires) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * @return true if the entry can be revalidated with a conditional request
+         */
+        public boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compiled metadata templates of one configuration block
+ */
+public class ArkMetadataTemplates {
+
+    private final ArkTemplate target;
+    private final ArkTemplate creator;
+    private final ArkTemplate title;
+    private final ArkTemplate publicationYear;
+    private final ArkTemplate publisher;
+    private final String resourceType;
+    private final Set<String> metadataNames = new LinkedHashSet<>();
+    private final boolean streamingSupported;
+
+    public ArkMetadataTemplates(String target, String creator, String title, String publicationYear, String publisher, String resourceType) {
+        this.target = ArkTemplate.compile(target);
+        this.creator = ArkTemplate.compile(creator);
+        this.title = ArkTemplate.compile(title);
+        this.publicationYear = ArkTemplate.compile(publicationYear);
+        this.publisher = ArkTemplate.compile(publisher);
+        this.resourceType = resourceType;
+
+        boolean streaming = true;
+        for (ArkTemplate template : new ArkTemplate[] { this.target, this.creator, this.title, this.publicationYear, this.publisher }) {
+            if (template != null) {
+                metadataNames.addAll(template.getMetadataNames());
+                streaming &= template.isStreamingSupported();
+            }
+        }
+        streamingSupported = streaming;
+    }
+
+    /**
+     * @return true if all templates can be filled from the logical element alone
+     */
+    public boolean isStreamingSupported() {
+        return streamingSupported;
+    }
+
+    /**
+     * Creates the DataCite metadata of a process. The metadata of the logical element is read in a single pass.
+     *
+     * @param document logical element of the process
+     * @return metadata for the ARK service
+     * @throws IllegalArgumentException if a template is missing in the configuration
+     */
+    public ArkMetadata createMetadata(ArkMetsDocument document) throws IllegalArgumentException {
+        Map<String, String> values = document.getFirstValues(metadataNames);
+        return ArkMetadata.builder()
+                .set(ArkInternalEnumeration._profile, "datacite")
+                .set(ArkInternalEnumeration._target, apply(target, values, document))
+                .set(ArkDataCiteEnumeration.CREATOR, apply(creator, values, document))
+                .set(ArkDataCiteEnumeration.TITLE, apply(title, values, document))
+                .set(ArkDataCiteEnumeration.PUBLICATIONYEAR, apply(publicationYear, values, document))
+                .set(ArkDataCiteEnumeration.PUBLISHER, apply(publisher, values, document))
+                .set(ArkDataCiteEnumeration.RESOURCETYPE, resourceType)
+                .build();
+    }
+
+    private static String apply(ArkTemplate template, Map<String, String> values, ArkMetsDocument document) {
+        return template == null ? null : template.apply(values, document);
+    }
+}
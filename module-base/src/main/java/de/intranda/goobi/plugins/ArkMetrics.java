@@ -0,0 +1,253 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * JVM wide measurements of the plugin: request timers per operation, counters per http status class, retries, METS read and write durations
+ * and the depth of pools and queues. All values are published as attributes of the MBean
+ * <code>de.intranda.goobi.plugins:type=ArkMetrics</code> and forwarded to all registered {@link ArkMetricsRegistry} instances.
+ */
+@Log4j2
+public final class ArkMetrics {
+
+    public static final String OBJECT_NAME = "de.intranda.goobi.plugins:type=ArkMetrics";
+
+    private static final Map<String, ArkTimer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private static final List<ArkMetricsRegistry> registries = new CopyOnWriteArrayList<>();
+
+    static {
+        registerMBean();
+    }
+
+    private ArkMetrics() {
+    }
+
+    /**
+     * Records the time that passed since the given start
+     *
+     * @param name name of the timer
+     * @param startNanos value of {@link System#nanoTime()} at the start of the operation
+     */
+    public static void recordSince(String name, long startNanos) {
+        recordTime(name, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param name name of the timer
+     * @param durationNanos duration in nanoseconds
+     */
+    public static void recordTime(String name, long durationNanos) {
+        timers.computeIfAbsent(name, k -> new ArkTimer()).record(durationNanos);
+        for (ArkMetricsRegistry registry : registries) {
+            try {
+                registry.recordTime(name, durationNanos);
+            } catch (RuntimeException e) {
+                log.warn("Metrics registry " + registry.getClass().getName() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * @param name name of the counter
+     */
+    public static void increment(String name) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).increment();
+        for (ArkMetricsRegistry registry : registries) {
+            try {
+                registry.increment(name);
+            } catch (RuntimeException e) {
+                log.warn("Metrics registry " + registry.getClass().getName() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Registers a gauge. A gauge with the same name is replaced, so classes that are loaded again do not leave stale values behind.
+     *
+     * @param name name of the gauge
+     * @param value supplier of the current value
+     */
+    public static void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+        for (ArkMetricsRegistry registry : registries) {
+            registry.gauge(name, value);
+        }
+    }
+
+    /**
+     * Adds a registry that receives all further measurements. Gauges that exist already are registered with it right away.
+     *
+     * @param registry additional registry
+     */
+    public static void addRegistry(ArkMetricsRegistry registry) {
+        registries.add(registry);
+        gauges.forEach(registry::gauge);
+    }
+
+    /**
+     * Adds a registry of the given class unless one of this class is registered already
+     *
+     * @param className fully qualified name of a class that implements {@link ArkMetricsRegistry} and has a public default constructor
+     */
+    public static synchronized void useRegistry(String className) {
+        if (className == null || className.isBlank()) {
+            return;
+        }
+        for (ArkMetricsRegistry registry : registries) {
+            if (registry.getClass().getName().equals(className)) {
+                return;
+            }
+        }
+        try {
+            Class<?> clazz = Class.forName(className, true, ArkMetrics.class.getClassLoader());
+            addRegistry((ArkMetricsRegistry) clazz.getDeclaredConstructor().newInstance());
+            log.info("Using metrics registry " + className);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            log.error("Could not create metrics registry " + className, e);
+        }
+    }
+
+    /**
+     * @param name name of the timer
+     * @return timer, empty if nothing was recorded yet
+     */
+    public static ArkTimer getTimer(String name) {
+        ArkTimer timer = timers.get(name);
+        return timer == null ? new ArkTimer() : timer;
+    }
+
+    /**
+     * @param name name of the counter
+     * @return current value of the counter
+     */
+    public static long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * @return all current values, timers are split into count, mean, max and percentiles in milliseconds
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        timers.forEach((name, timer) -> {
+            values.put(name + ".count", timer.getCount());
+            values.put(name + ".mean", timer.getMean());
+            values.put(name + ".max", timer.getMax());
+            values.put(name + ".p50", timer.getPercentile(0.5));
+            values.put(name + ".p95", timer.getPercentile(0.95));
+            values.put(name + ".p99", timer.getPercentile(0.99));
+        });
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get());
+            } catch (RuntimeException e) {
+                log.debug("Could not read gauge " + name, e);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Removes all recorded timers and counters. Gauges are kept.
+     */
+    public static void reset() {
+        timers.clear();
+        counters.clear();
+    }
+
+    private static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // the plugin may have been loaded again by a new class loader
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsBean(), name);
+        } catch (JMException | SecurityException e) {
+            log.warn("Could not publish ARK metrics via JMX", e);
+        }
+    }
+
+    /**
+     * Read-only MBean with one attribute per value of the snapshot
+     */
+    private static class MetricsBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("ARK metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            if ("reset".equals(actionName)) {
+                reset();
+            }
+            return null;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            snapshot().forEach((name, value) -> attributes
+                    .add(new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Removes all recorded timers and counters", null, "void",
+                    MBeanOperationInfo.ACTION);
+            return new MBeanInfo(ArkMetrics.class.getName(), "Metrics of the ARK plugin", attributes.toArray(new MBeanAttributeInfo[0]), null,
+                    new MBeanOperationInfo[] { reset }, null);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package de.intranda.goobi.plugins;
+
+import java.util.function.Supplier;
+
+/**
+ * Target for the measurements of the plugin. The built-in registry publishes them via JMX, further registries can be added with
+ * {@link ArkMetrics#addRegistry(ArkMetricsRegistry)} or the <code>metrics.registry</code> configuration, for example to forward them to
+ * Micrometer or Prometheus.
+ */
+public interface ArkMetricsRegistry {
+
+    /**
+     * Records the duration of an operation
+     *
+     * @param name name of the timer
+     * @param durationNanos duration in nanoseconds
+     */
+    void recordTime(String name, long durationNanos);
+
+    /**
+     * Increments a counter by one
+     *
+     * @param name name of the counter
+     */
+    void increment(String name);
+
+    /**
+     * Registers a value that is read whenever it is published, like the depth of a queue
+     *
+     * @param name name of the gauge
+     * @param value supplier of the current value
+     */
+    void gauge(String name, Supplier<Number> value);
+}
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+import ugh.exceptions.WriteException;
+
+/**
+ * Access to the logical element of a process that gets the ARK
+ */
+public interface ArkMetsDocument {
+
+    /**
+     * Replaces the variables of a configured value
+     *
+     * @param template value from the configuration file
+     * @return value with replaced variables
+     */
+    String replace(String template);
+
+    /**
+     * Reads the first value of each of the given metadata of the element in a single pass. Persons are returned with their display name.
+     *
+     * @param names metadata names
+     * @return values by name, metadata that the element does not have are missing
+     */
+    Map<String, String> getFirstValues(Set<String> names);
+
+    /**
+     * @return values of the ARK metadata of the element, empty if there is no ARK yet
+     */
+    List<String> getExistingArks();
+
+    /**
+     * @return position of the element in the logical tree as dot separated child indexes, empty for the top element
+     */
+    String getElementPath();
+
+    /**
+     * @return true if the ruleset allows the ARK metadata for the element
+     */
+    boolean isArkAllowed();
+
+    /**
+     * Adds a new ARK to the element and saves the METS file
+     *
+     * @param ark new ARK
+     */
+    void addArkAndSave(String ark) throws IOException, SwapException, ReadException, PreferencesException, WriteException,
+            MetadataTypeNotAllowedException;
+}
@@ -0,0 +1,327 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import lombok.Getter;
+
+/**
+ * Streaming access to the logical top element of a Goobi METS file. Only the logical structMap and the dmdSec of the element and of its
+ * anchor are read, the physical structure and all pages are skipped without building an object tree.
+ */
+public class ArkMetsFile {
+
+    private static final String METS_NS = "http://www.loc.gov/METS/";
+    private static final String GOOBI_NS_PREFIX = "http://meta.goobi.org/";
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    private final Path path;
+    @Getter
+    private String docStructType;
+    @Getter
+    private boolean anchorChild;
+    private String dmdId;
+    private String anchorDmdId;
+    private final Map<String, List<String>> metadata = new HashMap<>();
+    // metadata of the anchor, used for names the element does not have
+    private final Map<String, List<String>> anchorMetadata = new HashMap<>();
+
+    private ArkMetsFile(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the metadata of the logical top element. If the top element is an anchor, its first child is used instead.
+     *
+     * @param path METS file
+     * @param isAnchor tells if a structure type is an anchor
+     * @return file or null if the logical top element could not be found
+     * @throws IOException
+     */
+    public static ArkMetsFile read(Path path, Predicate<String> isAnchor) throws IOException {
+        ArkMetsFile file = new ArkMetsFile(path);
+        try {
+            if (!file.readLogicalStructMap(isAnchor)) {
+                return null;
+            }
+            file.readDmdSec();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not read " + path, e);
+        }
+        return file;
+    }
+
+    /**
+     * Returns the first value of a metadata of the element. Like the VariableReplacer, the value of the anchor is returned if the element is
+     * the child of an anchor and does not have the metadata.
+     *
+     * @param name name of the metadata type
+     * @return first value of the metadata or null
+     */
+    public String getFirstValue(String name) {
+        List<String> values = metadata.get(name);
+        if (values == null || values.isEmpty()) {
+            values = anchorMetadata.get(name);
+        }
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @param name name of the metadata type
+     * @return all values of the metadata, empty if the element has no such metadata
+     */
+    public List<String> getValues(String name) {
+        List<String> values = metadata.get(name);
+        return values == null ? new ArrayList<>() : values;
+    }
+
+    /**
+     * Writes the METS file again with an additional metadata in the dmdSec of the element. All other content is copied event by event. The
+     * previous file is kept as backup like Goobi does it.
+     *
+     * @param type name of the metadata type
+     * @param value value of the new metadata
+     * @param numberOfBackups number of backup files to keep
+     * @return false if the dmdSec has no Goobi extension to add the metadata to, the file is unchanged in this case
+     * @throws IOException
+     */
+    public boolean addMetadata(String type, String value, int numberOfBackups) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        boolean inserted = false;
+        try (InputStream in = Files.newInputStream(path); OutputStream out = Files.newOutputStream(tmp)) {
+            XMLEventReader reader = inputFactory.createXMLEventReader(in);
+            XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+            boolean inTarget = false;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement() && isMets(event.asStartElement(), "dmdSec")) {
+                    Attribute id = event.asStartElement().getAttributeByName(new QName("ID"));
+                    inTarget = id != null && dmdId.equals(id.getValue());
+                } else if (inTarget && !inserted && event.isEndElement() && isGoobi(event.asEndElement(), "goobi")) {
+                    EndElement end = event.asEndElement();
+                    String prefix = end.getName().getPrefix();
+                    String ns = end.getName().getNamespaceURI();
+                    List<Attribute> attributes = new ArrayList<>();
+                    attributes.add(eventFactory.createAttribute("name", type));
+                    writer.add(eventFactory.createStartElement(prefix, ns, "metadata", attributes.iterator(), null));
+                    writer.add(eventFactory.createCharacters(value));
+                    writer.add(eventFactory.createEndElement(prefix, ns, "metadata"));
+                    inserted = true;
+                }
+                writer.add(event);
+            }
+            writer.flush();
+            writer.close();
+            reader.close();
+        } catch (XMLStreamException e) {
+            Files.deleteIfExists(tmp);
+            throw new IOException("Could not write " + path, e);
+        }
+        if (!inserted) {
+            Files.deleteIfExists(tmp);
+            return false;
+        }
+        createBackup(numberOfBackups);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        List<String> values = metadata.computeIfAbsent(type, k -> new ArrayList<>());
+        values.add(value);
+        return true;
+    }
+
+    /**
+     * Finds the structure type and the DMDID of the logical top element
+     */
+    private boolean readLogicalStructMap(Predicate<String> isAnchor) throws IOException, XMLStreamException {
+        try (InputStream in = Files.newInputStream(path)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                boolean inLogical = false;
+                int divDepth = 0;
+                String topType = null;
+                String topDmdId = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT && METS_NS.equals(reader.getNamespaceURI())) {
+                        String name = reader.getLocalName();
+                        if ("structMap".equals(name)) {
+                            inLogical = "LOGICAL".equals(reader.getAttributeValue(null, "TYPE"));
+                        } else if (inLogical && "div".equals(name)) {
+                            divDepth++;
+                            if (divDepth == 1) {
+                                topType = reader.getAttributeValue(null, "TYPE");
+                                topDmdId = reader.getAttributeValue(null, "DMDID");
+                                if (topType != null && !isAnchor.test(topType)) {
+                                    docStructType = topType;
+                                    dmdId = topDmdId;
+                                    return dmdId != null;
+                                }
+                            } else if (divDepth == 2) {
+                                // first child of an anchor
+                                anchorChild = true;
+                                anchorDmdId = topDmdId;
+                                docStructType = reader.getAttributeValue(null, "TYPE");
+                                dmdId = reader.getAttributeValue(null, "DMDID");
+                                return docStructType != null && dmdId != null;
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && METS_NS.equals(reader.getNamespaceURI())) {
+                        if (inLogical && "div".equals(reader.getLocalName())) {
+                            divDepth--;
+                        } else if (inLogical && "structMap".equals(reader.getLocalName())) {
+                            return false;
+                        }
+                    }
+                }
+                return false;
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Collects the Goobi metadata of the dmdSecs of the element and its anchor. Persons are stored with their display name, groups are skipped.
+     */
+    private void readDmdSec() throws IOException, XMLStreamException {
+        try (InputStream in = Files.newInputStream(path)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                // metadata map of the dmdSec that is read, null outside of the dmdSecs of the element and its anchor
+                Map<String, List<String>> target = null;
+                int remaining = anchorDmdId == null ? 1 : 2;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String ns = reader.getNamespaceURI();
+                        String name = reader.getLocalName();
+                        if (METS_NS.equals(ns) && "dmdSec".equals(name)) {
+                            String id = reader.getAttributeValue(null, "ID");
+                            target = dmdId.equals(id) ? metadata : id != null && id.equals(anchorDmdId) ? anchorMetadata : null;
+                        } else if (METS_NS.equals(ns) && "structMap".equals(name)) {
+                            // all dmdSecs are before the structure maps
+                            return;
+                        } else if (target != null && ns != null && ns.startsWith(GOOBI_NS_PREFIX) && "metadata".equals(name)) {
+                            readGoobiMetadata(reader, target);
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && target != null && METS_NS.equals(reader.getNamespaceURI())
+                            && "dmdSec".equals(reader.getLocalName())) {
+                        target = null;
+                        if (--remaining == 0) {
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private void readGoobiMetadata(XMLStreamReader reader, Map<String, List<String>> target) throws XMLStreamException {
+        String name = reader.getAttributeValue(null, "name");
+        String type = reader.getAttributeValue(null, "type");
+        StringBuilder text = new StringBuilder();
+        String firstName = null;
+        String lastName = null;
+        String displayName = null;
+        boolean group = "group".equals(type);
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if (depth == 2 && !group) {
+                    String child = reader.getLocalName();
+                    if ("firstName".equals(child)) {
+                        firstName = reader.getElementText();
+                        depth--;
+                    } else if ("lastName".equals(child)) {
+                        lastName = reader.getElementText();
+                        depth--;
+                    } else if ("displayName".equals(child)) {
+                        displayName = reader.getElementText();
+                        depth--;
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if ((event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) && depth == 1) {
+                text.append(reader.getText());
+            }
+        }
+        if (name == null || group) {
+            return;
+        }
+        String value;
+        if ("person".equals(type)) {
+            if (displayName != null && !displayName.isBlank()) {
+                value = displayName;
+            } else if (lastName != null && firstName != null) {
+                value = lastName + ", " + firstName;
+            } else {
+                value = lastName != null ? lastName : firstName;
+            }
+        } else {
+            value = text.toString().trim();
+        }
+        if (value != null) {
+            target.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+    }
+
+    private void createBackup(int numberOfBackups) throws IOException {
+        if (numberOfBackups <= 0) {
+            return;
+        }
+        String fileName = path.getFileName().toString();
+        for (int i = numberOfBackups - 1; i >= 1; i--) {
+            Path older = path.resolveSibling(fileName + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, path.resolveSibling(fileName + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.copy(path, path.resolveSibling(fileName + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static boolean isMets(StartElement element, String localName) {
+        return METS_NS.equals(element.getName().getNamespaceURI()) && localName.equals(element.getName().getLocalPart());
+    }
+
+    private static boolean isGoobi(EndElement element, String localName) {
+        String ns = element.getName().getNamespaceURI();
+        return ns != null && ns.startsWith(GOOBI_NS_PREFIX) && localName.equals(element.getName().getLocalPart());
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
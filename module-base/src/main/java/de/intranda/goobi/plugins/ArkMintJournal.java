@@ -0,0 +1,355 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.goobi.beans.Process;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+import ugh.exceptions.WriteException;
+
+/**
+ * Write-ahead journal of new ARKs. Before an ARK is minted for a logical element an I line is written, the minted ARK follows as an M line and
+ * a C line marks that the ARK was saved in the METS file. An F line closes an entry that did not lead to an ARK. Every line is synced to disk
+ * before the call returns.
+ * <p>
+ * Entries that are still open after a crash or a failed METS write are recovered when the journal is opened: minted ARKs are added to the
+ * METS file of their process instead of minting new ones. The file is rotated after a number of finished entries, the open entries are copied
+ * to the new file and the last rotated files are kept.
+ */
+@Log4j2
+public class ArkMintJournal {
+
+    private static final Map<String, ArkMintJournal> journals = new ConcurrentHashMap<>();
+
+    private static final int ROTATE_THRESHOLD = 10000;
+    private static final int ROTATED_FILES = 3;
+
+    static {
+        ArkMetrics.gauge("ark.journal.open", () -> journals.values().stream().mapToInt(ArkMintJournal::getOpenCount).sum());
+    }
+
+    private final Path file;
+    private final Map<Long, Entry> open = new LinkedHashMap<>();
+    private long nextId;
+    private FileChannel channel;
+    private int finishedSinceRotation;
+
+    private ArkMintJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the journal of the configured service. On first use the journal file is read and open entries are recovered.
+     *
+     * @param config plugin configuration
+     * @return shared journal
+     */
+    public static ArkMintJournal getInstance(ArkPluginConfiguration config) {
+        String key = config.getUri() + "|" + config.getNaan() + "|" + config.getApiUser();
+        return journals.computeIfAbsent(key, k -> {
+            Path path = Paths.get(config.getStorageFolder(), "mint_" + config.getNaan() + "_" + config.getApiUser() + ".log");
+            try {
+                ArkMintJournal journal = open(path);
+                journal.recover(entry -> reattach(entry, config.getMetadataType()));
+                return journal;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open ARK mint journal " + path, e);
+            }
+        });
+    }
+
+    /**
+     * Reads a journal file, a missing file is created
+     *
+     * @param path journal file
+     * @return journal
+     * @throws IOException if the file could not be read or written
+     */
+    static ArkMintJournal open(Path path) throws IOException {
+        ArkMintJournal journal = new ArkMintJournal(path);
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Records that an ARK is about to be minted for an element
+     *
+     * @param processId id of the process
+     * @param element path of the logical element, empty for the top element
+     * @return id of the entry
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized long begin(int processId, String element) throws IOException {
+        Entry entry = new Entry(++nextId, processId, element);
+        append("I\t" + entry.getId() + "\t" + processId + "\t" + element);
+        open.put(entry.getId(), entry);
+        return entry.getId();
+    }
+
+    /**
+     * Records the ARK of an entry, before it is saved in the METS file
+     *
+     * @param id id of the entry
+     * @param ark minted ARK
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized void minted(long id, String ark) throws IOException {
+        Entry entry = open.get(id);
+        if (entry != null && !ark.equals(entry.getArk())) {
+            append("M\t" + id + "\t" + ark);
+            entry.ark = ark;
+        }
+    }
+
+    /**
+     * Closes an entry after its ARK was saved in the METS file
+     *
+     * @param id id of the entry
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized void completed(long id) throws IOException {
+        finish(id, "C");
+    }
+
+    /**
+     * Closes an entry that did not lead to an ARK, e.g. because the service rejected the mint
+     *
+     * @param id id of the entry
+     */
+    public synchronized void failed(long id) {
+        try {
+            finish(id, "F");
+        } catch (IOException e) {
+            // the entry is dropped on the next recovery
+            log.warn("Could not write to ARK mint journal " + file, e);
+        }
+    }
+
+    /**
+     * Finds an ARK that was minted for an element in an earlier run but is not saved in its METS file yet
+     *
+     * @param processId id of the process
+     * @param element path of the logical element, empty for the top element
+     * @return open entry with an ARK or null
+     */
+    public synchronized Entry findMinted(int processId, String element) {
+        for (Entry entry : open.values()) {
+            if (entry.getProcessId() == processId && entry.getElement().equals(element) && entry.getArk() != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return entries that are not completed yet
+     */
+    public synchronized List<Entry> getOpenEntries() {
+        return new ArrayList<>(open.values());
+    }
+
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+
+    /**
+     * Recovers all open entries. Entries without an ARK were interrupted before the service answered and are closed. Minted ARKs are passed to
+     * the reattacher; entries it could not handle because of an error stay open for the next recovery.
+     *
+     * @param reattacher saves a minted ARK in the METS file of its process
+     * @return number of ARKs that were recovered
+     */
+    synchronized int recover(Reattacher reattacher) {
+        int recovered = 0;
+        for (Entry entry : getOpenEntries()) {
+            if (entry.getArk() == null) {
+                log.warn("ARK registration of process " + entry.getProcessId() + " was interrupted before the service answered, "
+                        + "an ARK might have been minted without being saved");
+                failed(entry.getId());
+                continue;
+            }
+            try {
+                if (reattacher.reattach(entry)) {
+                    completed(entry.getId());
+                    ArkMetrics.increment("ark.journal.recovered");
+                    recovered++;
+                } else {
+                    failed(entry.getId());
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Could not recover ARK " + entry.getArk() + " of process " + entry.getProcessId(), e);
+            }
+        }
+        if (recovered > 0) {
+            log.info("Recovered " + recovered + " ARKs from the mint journal " + file);
+        }
+        return recovered;
+    }
+
+    /**
+     * Saves a minted ARK in the METS file of its process unless the element already has it
+     *
+     * @return true if the ARK is in the METS file, false if it cannot be saved there
+     */
+    private static boolean reattach(Entry entry, String metadataType) throws IOException {
+        Process process = ProcessManager.getProcessById(entry.getProcessId());
+        if (process == null) {
+            log.warn("Process " + entry.getProcessId() + " of ARK " + entry.getArk() + " does not exist anymore");
+            return false;
+        }
+        try {
+            ArkUghDocument document = new ArkUghDocument(process, null, metadataType);
+            for (ArkUghDocument.Element element : document.getElements(true)) {
+                if (!element.getElementPath().equals(entry.getElement())) {
+                    continue;
+                }
+                List<String> existingArks = element.getExistingArks();
+                if (existingArks.contains(entry.getArk())) {
+                    // the METS file was written, only the C line is missing
+                    return true;
+                }
+                if (!existingArks.isEmpty()) {
+                    ArkProcessLog.add(entry.getProcessId(), LogType.ERROR, "ARK: " + entry.getArk()
+                            + " was minted in an interrupted registration, but the element already has the ARK " + existingArks.get(0));
+                    return false;
+                }
+                element.addArkAndSave(entry.getArk());
+                ArkProcessLog.add(entry.getProcessId(), LogType.INFO,
+                        "ARK: " + entry.getArk() + " was saved after an interrupted registration");
+                return true;
+            }
+            log.warn("Logical element " + entry.getElement() + " of ARK " + entry.getArk() + " not found in process " + entry.getProcessId());
+            return false;
+        } catch (ReadException | PreferencesException | WriteException | SwapException | MetadataTypeNotAllowedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void finish(long id, String type) throws IOException {
+        if (open.remove(id) == null) {
+            return;
+        }
+        append(type + "\t" + id);
+        if (++finishedSinceRotation >= ROTATE_THRESHOLD) {
+            rotate();
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    // a torn last line after a crash is skipped
+                    if (fields.length >= 4 && "I".equals(fields[0])) {
+                        long id = Long.parseLong(fields[1]);
+                        open.put(id, new Entry(id, Integer.parseInt(fields[2]), fields[3]));
+                        nextId = Math.max(nextId, id);
+                    } else if (fields.length >= 3 && "M".equals(fields[0])) {
+                        Entry entry = open.get(Long.parseLong(fields[1]));
+                        if (entry != null) {
+                            entry.ark = fields[2];
+                        }
+                    } else if (fields.length >= 2 && ("C".equals(fields[0]) || "F".equals(fields[0]))) {
+                        open.remove(Long.parseLong(fields[1]));
+                    }
+                }
+            }
+            if (!open.isEmpty()) {
+                log.info("ARK mint journal " + file + " contains " + open.size() + " interrupted registrations");
+            }
+        }
+        rotate();
+    }
+
+    /**
+     * Moves the journal file to the first rotated file and starts a new one with the open entries
+     */
+    private synchronized void rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : open.values()) {
+            lines.add("I\t" + entry.getId() + "\t" + entry.getProcessId() + "\t" + entry.getElement());
+            if (entry.getArk() != null) {
+                lines.add("M\t" + entry.getId() + "\t" + entry.getArk());
+            }
+        }
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        if (Files.exists(file) && Files.size(file) > 0) {
+            for (int i = ROTATED_FILES - 1; i > 0; i--) {
+                Path older = rotated(i);
+                if (Files.exists(older)) {
+                    Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        finishedSinceRotation = 0;
+    }
+
+    private Path rotated(int number) {
+        return file.resolveSibling(file.getFileName() + "." + number);
+    }
+
+    private void append(String line) throws IOException {
+        channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+    }
+
+    /**
+     * Saves the ARK of an open entry in the METS file during recovery
+     */
+    @FunctionalInterface
+    interface Reattacher {
+        /**
+         * @return true if the ARK is saved, false if the entry cannot be recovered and is closed
+         * @throws IOException if the METS file could not be read or written, the entry stays open
+         */
+        boolean reattach(Entry entry) throws IOException;
+    }
+
+    /**
+     * Registration of a new ARK for a logical element
+     */
+    @Getter
+    public static class Entry {
+        private final long id;
+        private final int processId;
+        private final String element;
+        private String ark;
+
+        private Entry(long id, int processId, String element) {
+            this.id = id;
+            this.processId = processId;
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.goobi.beans.Process;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Persistent queue of ARK metadata updates. The step only enqueues the update and returns, a background dispatcher sends the queued updates in
+ * batches and writes the final result to the journal of the process. All queued updates of an ARK are sent as one request with the merged
+ * metadata. An update that failed temporarily waits for its next attempt with a growing delay, the updates of other ARKs are sent meanwhile.
+ * <p>
+ * The queue is an append-only file in the storage folder. Every queued update is written as an E line, every finished update as a D line;
+ * both are synced to disk before the call returns. Lines of finished updates are removed when the file is compacted.
+ */
+@Log4j2
+public class ArkOutbox {
+
+    private static final Map<String, ArkOutbox> outboxes = new ConcurrentHashMap<>();
+
+    private static final int COMPACT_THRESHOLD = 1000;
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+
+    static {
+        ArkMetrics.gauge("ark.outbox.pending", () -> outboxes.values().stream().mapToInt(ArkOutbox::getPendingCount).sum());
+    }
+
+    private final ArkRestClient client;
+    private final Path journal;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long intervalMillis;
+
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private FileChannel channel;
+    private boolean closed;
+    private int finishedSinceCompaction;
+
+    private final ScheduledExecutorService dispatcher;
+
+    private ArkOutbox(ArkRestClient client, Path journal, int batchSize, int maxAttempts, long intervalMillis) {
+        this.client = client;
+        this.journal = journal;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.intervalMillis = Math.max(1, intervalMillis);
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ark-outbox-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the outbox of the configured service. On first use the queue file is read and the dispatcher is started.
+     *
+     * @param config plugin configuration
+     * @return shared outbox
+     */
+    public static ArkOutbox getInstance(ArkPluginConfiguration config) {
+        String key = config.getUri() + "|" + config.getNaan() + "|" + config.getApiUser();
+        return outboxes.computeIfAbsent(key, k -> {
+            Path file = Paths.get(config.getStorageFolder(), "outbox_" + config.getNaan() + "_" + config.getApiUser() + ".log");
+            try {
+                return open(config.createClient(), file, config.getOutboxBatchSize(), config.getOutboxMaxAttempts(),
+                        TimeUnit.SECONDS.toMillis(config.getOutboxInterval()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open ARK outbox " + file, e);
+            }
+        });
+    }
+
+    /**
+     * Reads a queue file and starts the dispatcher, a missing file is created
+     *
+     * @param client client for the ARK service
+     * @param journal queue file
+     * @param batchSize number of ARKs that are updated in parallel
+     * @param maxAttempts number of attempts of an update
+     * @param intervalMillis time in milliseconds between two runs of the dispatcher, also the delay before the second attempt of an update
+     * @return outbox
+     * @throws IOException if the file could not be read or written
+     */
+    static ArkOutbox open(ArkRestClient client, Path journal, int batchSize, int maxAttempts, long intervalMillis) throws IOException {
+        ArkOutbox outbox = new ArkOutbox(client, journal, batchSize, maxAttempts, intervalMillis);
+        outbox.load();
+        outbox.dispatcher.scheduleWithFixedDelay(outbox::dispatch, 0, outbox.intervalMillis, TimeUnit.MILLISECONDS);
+        return outbox;
+    }
+
+    /**
+     * Queues a metadata update. The update is on disk when this method returns.
+     *
+     * @param processId id of the process the ARK belongs to
+     * @param ark ARK to update
+     * @param metadata metadata to send
+     * @throws IOException if the update could not be written to the queue
+     */
+    public void enqueue(int processId, String ark, HashMap<String, String> metadata) throws IOException {
+        synchronized (this) {
+            Entry entry = new Entry(nextId.incrementAndGet(), processId, ark, metadata);
+            append("E\t" + entry.id + "\t" + processId + "\t" + ark + "\t" + encode(metadata));
+            pending.put(entry.id, entry);
+        }
+        dispatcher.execute(this::dispatch);
+    }
+
+    /**
+     * @return number of updates that are not sent yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the dispatcher and closes the queue file, queued updates are sent when the outbox is opened again
+     */
+    void shutdown() {
+        outboxes.values().remove(this);
+        dispatcher.shutdownNow();
+        synchronized (this) {
+            closed = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("Could not close ARK outbox " + journal, e);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Sends the next batch of queued updates in parallel. Updates that failed temporarily stay in the queue for the next run.
+     */
+    private void dispatch() {
+        try {
+            dispatchBatch();
+        } catch (RuntimeException e) {
+            log.error("Error while sending queued ARK updates", e);
+        }
+    }
+
+    private void dispatchBatch() {
+        List<Update> batch = getDueUpdates(System.currentTimeMillis(), batchSize);
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(batch.size());
+        for (Update update : batch) {
+            futures.add(client.updateArkAsync(update.ark, update.metadata)
+                    .handle((successful, error) -> finish(update, Boolean.TRUE.equals(successful),
+                            error instanceof CompletionException ? error.getCause() : error)));
+        }
+        boolean retryLater = false;
+        for (CompletableFuture<Boolean> future : futures) {
+            retryLater |= future.join();
+        }
+
+        // continue with the next batch right away unless the service has problems
+        boolean more = !getDueUpdates(System.currentTimeMillis(), 1).isEmpty();
+        if (more && !retryLater && !dispatcher.isShutdown()) {
+            dispatcher.execute(this::dispatch);
+        }
+    }
+
+    /**
+     * Collects the queued updates that are due, one per ARK in the order of their first queued update. The metadata of all queued updates of an
+     * ARK is merged, newer values replace older ones. ARKs with an update that waits for its next attempt are skipped.
+     */
+    private synchronized List<Update> getDueUpdates(long now, int limit) {
+        Map<String, Update> updates = new LinkedHashMap<>();
+        Set<String> waiting = new HashSet<>();
+        for (Entry entry : pending.values()) {
+            if (entry.nextAttempt > now) {
+                waiting.add(entry.ark);
+            } else {
+                updates.computeIfAbsent(entry.ark, Update::new).add(entry);
+            }
+        }
+        List<Update> due = new ArrayList<>();
+        for (Update update : updates.values()) {
+            if (due.size() == limit) {
+                break;
+            }
+            if (!waiting.contains(update.ark)) {
+                due.add(update);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Removes a sent update from the queue and writes the result to the journal of the process
+     *
+     * @return true if the update stays in the queue to be sent again later
+     */
+    private boolean finish(Update update, boolean successful, Throwable error) {
+        if (successful) {
+            storeFingerprint(update);
+            ArkProcessLog.add(update.processId, LogType.INFO, "ARK: " + update.ark + " was updated sucecssfully");
+        } else if (error instanceof ArkCircuitOpenException) {
+            // the service is unavailable, this does not count as an attempt
+            return true;
+        } else if (error instanceof ArkServiceException && !((ArkServiceException) error).isRetryable()) {
+            ArkProcessLog.add(update.processId, LogType.ERROR, "ARK: " + update.ark + " could not be updated: " + error.getMessage());
+        } else if (error != null && update.attempts + 1 < maxAttempts) {
+            long delay = getRetryDelay(update.attempts + 1, error);
+            log.debug("Queued update of " + update.ark + " failed, will try again in " + delay + " ms: " + error.getMessage());
+            synchronized (this) {
+                for (Entry entry : update.entries) {
+                    entry.attempts = update.attempts + 1;
+                    entry.nextAttempt = System.currentTimeMillis() + delay;
+                }
+            }
+            return true;
+        } else {
+            ArkProcessLog.add(update.processId, LogType.ERROR,
+                    "ARK: " + update.ark + " could not be updated" + (error == null ? "!" : ": " + error.getMessage()));
+        }
+        synchronized (this) {
+            try {
+                for (Entry entry : update.entries) {
+                    append("D\t" + entry.id);
+                    pending.remove(entry.id);
+                    finishedSinceCompaction++;
+                }
+                if (finishedSinceCompaction >= COMPACT_THRESHOLD) {
+                    compact();
+                }
+            } catch (IOException e) {
+                log.error("Could not write to ARK outbox " + journal, e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return delay before the next attempt, it doubles with every attempt and is at least the one requested by the service
+     */
+    private long getRetryDelay(int attempts, Throwable error) {
+        long delay = Math.min(MAX_RETRY_DELAY, intervalMillis << Math.min(attempts - 1, 20));
+        if (error instanceof ArkRetryableException) {
+            delay = Math.max(delay, ((ArkRetryableException) error).getRetryAfterMillis());
+        }
+        return delay;
+    }
+
+    private void storeFingerprint(Update update) {
+        Process process = ProcessManager.getProcessById(update.processId);
+        if (process == null) {
+            return;
+        }
+        // the status is not part of the fingerprint, like in the registration of the step
+        HashMap<String, String> metadata = new HashMap<>(update.metadata);
+        metadata.remove(ArkInternalEnumeration._status.toString());
+        try {
+            ArkFingerprintStore.load(process).store(update.ark, client.createMetadataBodyString(metadata, update.ark));
+        } catch (IOException | SwapException e) {
+            log.warn("Could not store metadata fingerprint of " + update.ark, e);
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        Files.createDirectories(journal.getParent());
+        if (Files.exists(journal)) {
+            for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length >= 5 && "E".equals(fields[0])) {
+                    long id = Long.parseLong(fields[1]);
+                    pending.put(id, new Entry(id, Integer.parseInt(fields[2]), fields[3], decode(fields[4])));
+                    nextId.accumulateAndGet(id, Math::max);
+                } else if (fields.length >= 2 && "D".equals(fields[0])) {
+                    pending.remove(Long.parseLong(fields[1]));
+                }
+            }
+            if (!pending.isEmpty()) {
+                log.info("ARK outbox " + journal + " contains " + pending.size() + " queued updates");
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Rewrites the queue file with the pending updates only
+     */
+    private synchronized void compact() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        List<String> lines = new ArrayList<>(pending.size());
+        for (Entry entry : pending.values()) {
+            lines.add("E\t" + entry.id + "\t" + entry.processId + "\t" + entry.ark + "\t" + encode(entry.metadata));
+        }
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        finishedSinceCompaction = 0;
+    }
+
+    private void append(String line) throws IOException {
+        if (closed) {
+            throw new IOException("ARK outbox " + journal + " is closed");
+        }
+        channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.force(false);
+    }
+
+    private static String encode(Map<String, String> metadata) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> e : metadata.entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(URLEncoder.encode(e.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(e.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    private static HashMap<String, String> decode(String value) {
+        HashMap<String, String> metadata = new HashMap<>();
+        try {
+            for (String pair : value.split("&")) {
+                int index = pair.indexOf('=');
+                if (index > 0) {
+                    metadata.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return metadata;
+    }
+
+    private static class Entry {
+        private final long id;
+        private final int processId;
+        private final String ark;
+        private final HashMap<String, String> metadata;
+        private int attempts;
+        // time of the next attempt after a temporary failure
+        private long nextAttempt;
+
+        private Entry(long id, int processId, String ark, HashMap<String, String> metadata) {
+            this.id = id;
+            this.processId = processId;
+            this.ark = ark;
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Queued updates of one ARK that are sent as one request
+     */
+    private static class Update {
+        private final String ark;
+        private final List<Entry> entries = new ArrayList<>();
+        private final HashMap<String, String> metadata = new HashMap<>();
+        private int processId;
+        private int attempts;
+
+        private Update(String ark) {
+            this.ark = ark;
+        }
+
+        private void add(Entry entry) {
+            entries.add(entry);
+            metadata.putAll(entry.metadata);
+            processId = entry.processId;
+            attempts = Math.max(attempts, entry.attempts);
+        }
+    }
+}
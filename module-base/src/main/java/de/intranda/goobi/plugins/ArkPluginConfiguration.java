@@ -0,0 +1,290 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.SubnodeConfiguration;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.Getter;
+
+/**
+ * Values of one &lt;config&gt; block of the plugin configuration file
+ */
+@Getter
+public class ArkPluginConfiguration {
+
+    // parsed configuration blocks by project and step, cleared when the configuration file changes
+    private static final Map<String, ArkPluginConfiguration> cache = new ConcurrentHashMap<>();
+    private static volatile long cachedLastModified = -1;
+
+    private String metadataType;
+
+    // ArkRestClient configuration parameters
+    private String uri;
+    private String naan;
+    private String apiUser;
+    private String apiPassword;
+    private String shoulder;
+    private ArkConnectionSettings connectionSettings;
+    private ArkRetryPolicy retryPolicy;
+    private int circuitBreakerFailureThreshold;
+    private long circuitBreakerOpenDuration;
+    private double rateLimit;
+    private int rateLimitBurst;
+
+    // further accounts and endpoints besides the main one
+    private ArkEndpoint mainEndpoint;
+    private List<ArkEndpoint> endpoints = new ArrayList<>();
+    private int healthCheckInterval;
+
+    // datacite metadata
+    private String creator;
+    private String title;
+    private String publisher;
+    private String publicationYear;
+    private String resourceType;
+    private String target;
+    private ArkMetadataTemplates templates;
+
+    // read only the logical top element of the METS file
+    private boolean streamingMets;
+
+    // send updates even if the metadata did not change since the last run
+    private boolean forceUpdate;
+
+    // folder for local files like the reserve pool
+    private String storageFolder;
+
+    // pool of pre-minted ARKs
+    private boolean reservePoolEnabled;
+    private int reservePoolSize;
+    private int reservePoolLowWaterMark;
+    private int reservePoolRefillThreads;
+
+    // queue updates and send them in the background
+    private boolean outboxEnabled;
+    private int outboxBatchSize;
+    private int outboxInterval;
+    private int outboxMaxAttempts;
+
+    // batch registration
+    private boolean batchMode;
+    private int batchThreads;
+    private List<Integer> batchProcesses = new ArrayList<>();
+    private String batchFilter;
+
+    // cache for the metadata read from the service
+    private boolean cacheEnabled;
+    private int cacheMaxEntries;
+    private int cacheTtl;
+    private boolean cacheConditional;
+
+    // local index of the registered ARKs
+    private boolean indexEnabled;
+
+    // write-ahead journal of new ARKs
+    private boolean journalEnabled;
+
+    // ARKs for the anchor, all volumes and optionally their children
+    private boolean hierarchicalEnabled;
+    private boolean hierarchicalIncludeChildren;
+
+    // comparison of the registered metadata with the METS files
+    private boolean reconciliationEnabled;
+    private String reconciliationFilter;
+    private int reconciliationThreads;
+    private String reconciliationDumpFile;
+    private boolean reconciliationEnqueueUpdates;
+
+    // bulk change of the ARK status
+    private boolean statusChangeEnabled;
+    private String statusChangeTarget;
+    private String statusChangeReason;
+    private String statusChangeProject;
+    private Integer statusChangeBatch;
+    private List<Integer> statusChangeProcesses = new ArrayList<>();
+    private String statusChangeFilter;
+    private int statusChangeBatchSize;
+
+    // buffered journal of the processes
+    private boolean processLogBuffered;
+    private long processLogInterval;
+    private boolean processLogSuppressInfo;
+
+    // additional metrics registry besides JMX
+    private String metricsRegistry;
+
+    public ArkPluginConfiguration(SubnodeConfiguration myconfig) {
+        metadataType = myconfig.getString("metadataType", "ark");
+
+        uri = myconfig.getString("uri", "http://example.com");
+        naan = myconfig.getString("naan", "1111111");
+        apiUser = myconfig.getString("apiUser", "Nutzer");
+        apiPassword = myconfig.getString("apiPassword", "Password");
+        shoulder = myconfig.getString("shoulder", "Password");
+        connectionSettings = ArkConnectionSettings.fromConfiguration(myconfig);
+        retryPolicy = ArkRetryPolicy.fromConfiguration(myconfig);
+        circuitBreakerFailureThreshold = myconfig.getInt("circuitBreaker.failureThreshold", 5);
+        circuitBreakerOpenDuration = myconfig.getLong("circuitBreaker.openDuration", 60000);
+        rateLimit = myconfig.getDouble("rateLimit.requestsPerSecond", 0);
+        rateLimitBurst = myconfig.getInt("rateLimit.burst", 10);
+
+        mainEndpoint = new ArkEndpoint("main", uri, naan, apiUser, apiPassword, shoulder, myconfig.getInt("endpoints.weight", 1));
+        for (HierarchicalConfiguration endpoint : myconfig.configurationsAt("endpoints.endpoint")) {
+            endpoints.add(ArkEndpoint.fromConfiguration(endpoint, mainEndpoint));
+        }
+        healthCheckInterval = myconfig.getInt("endpoints.healthCheckInterval", 30);
+
+        creator = myconfig.getString("metadataCreator");
+        title = myconfig.getString("metadataTitle");
+        publisher = myconfig.getString("metadataPublisher");
+        publicationYear = myconfig.getString("metadataPublicationYear");
+        resourceType = myconfig.getString("metadataResourceType");
+
+        target = myconfig.getString("publicationUrl");
+        templates = new ArkMetadataTemplates(target, creator, title, publicationYear, publisher, resourceType);
+
+        streamingMets = myconfig.getBoolean("streamingMets", false);
+
+        forceUpdate = myconfig.getBoolean("forceUpdate", false);
+
+        storageFolder = myconfig.getString("storageFolder", ConfigurationHelper.getInstance().getGoobiFolder() + "ark");
+
+        reservePoolEnabled = myconfig.getBoolean("reservePool.enabled", false);
+        reservePoolSize = myconfig.getInt("reservePool.size", 100);
+        reservePoolLowWaterMark = myconfig.getInt("reservePool.lowWaterMark", 20);
+        reservePoolRefillThreads = myconfig.getInt("reservePool.refillThreads", 2);
+
+        outboxEnabled = myconfig.getBoolean("outbox.enabled", false);
+        outboxBatchSize = myconfig.getInt("outbox.batchSize", 50);
+        outboxInterval = myconfig.getInt("outbox.interval", 30);
+        outboxMaxAttempts = myconfig.getInt("outbox.maxAttempts", 10);
+
+        batchMode = myconfig.getBoolean("batch.enabled", false);
+        batchThreads = myconfig.getInt("batch.threads", 4);
+        batchProcesses = parseProcessIds(myconfig.getStringArray("batch.processes"));
+        batchFilter = myconfig.getString("batch.filter", null);
+
+        cacheEnabled = myconfig.getBoolean("cache.enabled", false);
+        cacheMaxEntries = myconfig.getInt("cache.maxEntries", 10000);
+        cacheTtl = myconfig.getInt("cache.ttl", 300);
+        cacheConditional = myconfig.getBoolean("cache.conditional", true);
+
+        indexEnabled = myconfig.getBoolean("index.enabled", false);
+        journalEnabled = myconfig.getBoolean("journal.enabled", false);
+
+        hierarchicalEnabled = myconfig.getBoolean("hierarchical.enabled", false);
+        hierarchicalIncludeChildren = myconfig.getBoolean("hierarchical.includeChildren", false);
+
+        reconciliationEnabled = myconfig.getBoolean("reconciliation.enabled", false);
+        reconciliationFilter = myconfig.getString("reconciliation.filter", null);
+        reconciliationThreads = myconfig.getInt("reconciliation.threads", 8);
+        reconciliationDumpFile = myconfig.getString("reconciliation.dumpFile", null);
+        reconciliationEnqueueUpdates = myconfig.getBoolean("reconciliation.enqueueUpdates", false);
+
+        statusChangeEnabled = myconfig.getBoolean("statusChange.enabled", false);
+        statusChangeTarget = myconfig.getString("statusChange.targetStatus", "public");
+        statusChangeReason = myconfig.getString("statusChange.reason", null);
+        statusChangeProject = myconfig.getString("statusChange.project", null);
+        String batch = myconfig.getString("statusChange.batch", "");
+        statusChangeBatch = batch.isBlank() ? null : Integer.valueOf(batch.trim());
+        statusChangeProcesses = parseProcessIds(myconfig.getStringArray("statusChange.processes"));
+        statusChangeFilter = myconfig.getString("statusChange.filter", null);
+        statusChangeBatchSize = myconfig.getInt("statusChange.batchSize", 500);
+
+        processLogBuffered = myconfig.getBoolean("processLog.buffered", false);
+        processLogInterval = myconfig.getLong("processLog.interval", 1000);
+        processLogSuppressInfo = myconfig.getBoolean("processLog.suppressInfo", false);
+
+        metricsRegistry = myconfig.getString("metrics.registry", null);
+    }
+
+    /**
+     * Returns the configuration block for the project and the step. The blocks are parsed once and read again after the configuration file
+     * was changed.
+     *
+     * @param pluginTitle name of the plugin
+     * @param step step that uses the plugin
+     * @return configuration
+     */
+    public static ArkPluginConfiguration getInstance(String pluginTitle, Step step) {
+        Process process = step.getProzess();
+        if (process == null || process.getProjekt() == null) {
+            return new ArkPluginConfiguration(ConfigPlugins.getProjectAndStepConfig(pluginTitle, step));
+        }
+        long lastModified = getLastModified(pluginTitle);
+        if (lastModified != cachedLastModified) {
+            cache.clear();
+            cachedLastModified = lastModified;
+        }
+        String key = pluginTitle + "|" + process.getProjekt().getTitel() + "|" + step.getTitel();
+        return cache.computeIfAbsent(key, k -> new ArkPluginConfiguration(ConfigPlugins.getProjectAndStepConfig(pluginTitle, step)));
+    }
+
+    private static long getLastModified(String pluginTitle) {
+        Path file = Paths.get(ConfigurationHelper.getInstance().getConfigurationFolder(), "plugin_" + pluginTitle + ".xml");
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parses lists of process ids separated by commas or whitespace
+     */
+    private static List<Integer> parseProcessIds(String[] values) {
+        List<Integer> processIds = new ArrayList<>();
+        for (String processes : values) {
+            for (String processId : processes.split("[,\\s]+")) {
+                if (!processId.isEmpty()) {
+                    processIds.add(Integer.valueOf(processId));
+                }
+            }
+        }
+        return processIds;
+    }
+
+    /**
+     * Creates a client for the configured ARK service
+     *
+     * @return client using the shared connection pool
+     */
+    public ArkRestClient createClient() {
+        if (endpoints.isEmpty()) {
+            return createClient(mainEndpoint);
+        }
+        ArkRoutingClient client = new ArkRoutingClient(mainEndpoint, connectionSettings);
+        client.addEndpoint(mainEndpoint, createClient(mainEndpoint), healthCheckInterval);
+        for (ArkEndpoint endpoint : endpoints) {
+            client.addEndpoint(endpoint, createClient(endpoint), healthCheckInterval);
+        }
+        return client;
+    }
+
+    private ArkRestClient createClient(ArkEndpoint endpoint) {
+        String key = endpoint.getKey();
+        ArkRestClient client = new ArkRestClient(endpoint.getUri(), endpoint.getNaan(), endpoint.getApiUser(), endpoint.getApiPassword(),
+                connectionSettings);
+        client.setRetryPolicy(retryPolicy);
+        client.setCircuitBreaker(ArkCircuitBreaker.getInstance(key, circuitBreakerFailureThreshold, circuitBreakerOpenDuration));
+        if (rateLimit > 0) {
+            client.setRateLimiter(ArkRateLimiter.getInstance(endpoint.getUri(), endpoint.getApiUser(), rateLimit, rateLimitBurst));
+        }
+        if (cacheEnabled) {
+            client.setMetadataCache(ArkMetadataCache.getInstance(key, cacheMaxEntries, cacheTtl * 1000L, cacheConditional));
+        }
+        return client;
+    }
+}
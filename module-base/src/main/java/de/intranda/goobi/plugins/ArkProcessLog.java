@@ -0,0 +1,208 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.Helper;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Writes the messages of the plugin to the journal of the processes. Without buffering every message is written right away. With buffering the
+ * messages of a process are queued and written by a background thread after the configured interval; consecutive messages with the same type
+ * are written as one journal entry. The step calls {@link #flush(int)} for its process before it returns, so its messages are in the journal
+ * when the step is finished.
+ * <p>
+ * The settings are kept per process, as the steps of different projects can use different configurations. Messages of a process without
+ * settings are written right away. INFO messages can be suppressed completely, errors are always written.
+ */
+@Log4j2
+public final class ArkProcessLog {
+
+    private static final int MAX_PENDING = 1000;
+    private static final int MAX_SETTINGS = 10000;
+
+    // settings of the processes whose steps ran last
+    private static final Map<Integer, Settings> settings = Collections.synchronizedMap(new LinkedHashMap<Integer, Settings>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Settings> eldest) {
+            return size() > MAX_SETTINGS;
+        }
+    });
+    // queued messages per process, a process without queued messages has no entry
+    private static final Map<Integer, Deque<Message>> queues = new ConcurrentHashMap<>();
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final Object flushLock = new Object();
+
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ark-process-log");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ArkMetrics.gauge("ark.processlog.pending", pending::get);
+    }
+
+    private ArkProcessLog() {
+    }
+
+    /**
+     * Changes the settings for the messages of a process. Pending messages of the process are written if buffering is switched off.
+     *
+     * @param processId id of the process
+     * @param buffered true to queue the messages and write them in the background
+     * @param intervalMillis time in milliseconds a message is queued before it is written
+     * @param suppressInfo true to drop INFO messages
+     */
+    public static void configure(int processId, boolean buffered, long intervalMillis, boolean suppressInfo) {
+        settings.put(processId, new Settings(buffered, Math.max(10, intervalMillis), suppressInfo));
+        if (!buffered) {
+            flush(processId);
+        }
+    }
+
+    /**
+     * Adds a message to the journal of a process
+     *
+     * @param processId id of the process
+     * @param type type of the message
+     * @param message message
+     */
+    public static void add(int processId, LogType type, String message) {
+        Settings processSettings = settings.get(processId);
+        if (processSettings != null && processSettings.suppressInfo && type == LogType.INFO) {
+            log.debug("Process " + processId + ": " + message);
+            ArkMetrics.increment("ark.processlog.suppressed");
+            return;
+        }
+        if (processSettings == null || !processSettings.buffered) {
+            write(processId, type, message);
+            return;
+        }
+        boolean[] first = new boolean[1];
+        queues.compute(processId, (id, messages) -> {
+            if (messages == null) {
+                messages = new ArrayDeque<>();
+                first[0] = true;
+            }
+            messages.addLast(new Message(processId, type, message));
+            return messages;
+        });
+        if (first[0]) {
+            schedule(processId);
+        }
+        if (pending.incrementAndGet() >= MAX_PENDING) {
+            writer.execute(ArkProcessLog::flushAll);
+        }
+    }
+
+    /**
+     * Writes the queued messages of a process on the calling thread. If the journal cannot be written, the messages that were not written stay
+     * in the queue.
+     *
+     * @param processId id of the process
+     */
+    public static void flush(int processId) {
+        synchronized (flushLock) {
+            Deque<Message> messages = queues.remove(processId);
+            if (messages == null) {
+                return;
+            }
+            List<Message> entries = new ArrayList<>();
+            for (Message message : messages) {
+                pending.decrementAndGet();
+                Message last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+                if (last != null && last.type == message.type) {
+                    last.text.append('\n').append(message.text);
+                } else {
+                    entries.add(message);
+                }
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                Message entry = entries.get(i);
+                try {
+                    write(entry.processId, entry.type, entry.text.toString());
+                } catch (RuntimeException e) {
+                    // keep the unwritten messages in front of the ones that were added meanwhile
+                    Deque<Message> unwritten = new ArrayDeque<>(entries.subList(i, entries.size()));
+                    pending.addAndGet(unwritten.size());
+                    queues.merge(processId, unwritten, (added, failed) -> {
+                        failed.addAll(added);
+                        return failed;
+                    });
+                    schedule(processId);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queued messages of all processes
+     */
+    private static void flushAll() {
+        for (Integer processId : queues.keySet()) {
+            flushQuietly(processId);
+        }
+    }
+
+    private static void flushQuietly(int processId) {
+        try {
+            flush(processId);
+        } catch (RuntimeException e) {
+            log.error("Could not write the journal of process " + processId + ", trying again later", e);
+        }
+    }
+
+    /**
+     * Writes the queued messages of a process in the background after the interval of the process
+     */
+    private static void schedule(int processId) {
+        Settings processSettings = settings.get(processId);
+        long interval = processSettings == null ? 1000 : processSettings.intervalMillis;
+        writer.schedule(() -> flushQuietly(processId), interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static void write(int processId, LogType type, String message) {
+        Helper.addMessageToProcessLog(processId, type, message);
+        ArkMetrics.increment("ark.processlog.written");
+    }
+
+    private static class Settings {
+        private final boolean buffered;
+        private final long intervalMillis;
+        private final boolean suppressInfo;
+
+        private Settings(boolean buffered, long intervalMillis, boolean suppressInfo) {
+            this.buffered = buffered;
+            this.intervalMillis = intervalMillis;
+            this.suppressInfo = suppressInfo;
+        }
+    }
+
+    private static class Message {
+        private final int processId;
+        private final LogType type;
+        private final StringBuilder text;
+
+        private Message(int processId, LogType type, String text) {
+            this.processId = processId;
+            this.type = type;
+            this.text = new StringBuilder(text);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.http.client.ClientProtocolException;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import lombok.extern.log4j.Log4j2;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+import ugh.exceptions.WriteException;
+
+/**
+ * Registers or updates the ARK of a single process. Instances are stateless and can be used by several threads at the same time.
+ */
+@Log4j2
+public class ArkProcessRegistrar {
+
+    private final ArkPluginConfiguration config;
+    private final ArkRestClient arkClient;
+
+    public ArkProcessRegistrar(ArkPluginConfiguration config, ArkRestClient arkClient) {
+        this.config = config;
+        this.arkClient = arkClient;
+    }
+
+    /**
+     * Reads the METS file of the process, updates all existing ARKs of the top struct or mints a new one and saves it in the METS file. In
+     * hierarchical mode the {@link ArkHierarchicalRegistrar} registers all elements of the logical tree instead.
+     *
+     * @param process process to register
+     * @param step step that triggered the registration, can be null
+     * @return outcome of the registration
+     */
+    public ArkRegistrationResult register(Process process, Step step) {
+        // the messages of the process follow the configuration it is registered with, also in batches
+        ArkProcessLog.configure(process.getId(), config.isProcessLogBuffered(), config.getProcessLogInterval(), config.isProcessLogSuppressInfo());
+        if (config.isHierarchicalEnabled()) {
+            return new ArkHierarchicalRegistrar(config, arkClient).register(process, step);
+        }
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        int processId = process.getId();
+        boolean successful = false;
+        boolean foundExistingArk = false;
+        boolean allUnchanged = true;
+        boolean deferred = false;
+        boolean queued = false;
+        String ark = null;
+        String message = null;
+
+        try {
+            long readStart = System.nanoTime();
+            ArkMetsDocument document = openDocument(config, process, step);
+            ArkMetrics.recordSince("ark.mets.read", readStart);
+
+            long replaceStart = System.nanoTime();
+            ArkMetadata mdata = config.getTemplates().createMetadata(document);
+            ArkMetrics.recordSince("ark.metadata.replace", replaceStart);
+            ArkFingerprintStore fingerprints = ArkFingerprintStore.load(process);
+            ArkIndex index = config.isIndexEnabled() ? ArkIndex.getInstance(config) : null;
+
+            // find existing ARKs
+            for (String existingArk : document.getExistingArks()) {
+                foundExistingArk = true;
+                ark = existingArk;
+                String body = arkClient.createMetadataBodyString(mdata, existingArk);
+                if (!config.isForceUpdate() && fingerprints.isUnchanged(existingArk, body)) {
+                    ArkMetrics.increment("ark.updates.skipped");
+                    successful = true;
+                    ArkProcessLog.add(processId, LogType.INFO, "ARK: " + existingArk + " is unchanged, no update was sent");
+                    continue;
+                }
+                allUnchanged = false;
+                ArkMetrics.increment("ark.updates.sent");
+                if (config.isOutboxEnabled()) {
+                    ArkOutbox.getInstance(config).enqueue(processId, existingArk, mdata.toHashMap());
+                    queued = true;
+                    successful = true;
+                    ArkProcessLog.add(processId, LogType.INFO, "ARK: " + existingArk + " update was queued");
+                    continue;
+                }
+                successful = arkClient.updateArk(existingArk, mdata);
+                if (!successful) {
+                    ArkProcessLog.add(processId, LogType.ERROR, "ARK: " + existingArk + " could not be updated!");
+                } else {
+                    fingerprints.store(existingArk, body);
+                    if (index != null) {
+                        index.record(processId, document, existingArk, mdata, body);
+                    }
+                    ArkProcessLog.add(processId, LogType.INFO, "ARK: " + existingArk + " was updated sucecssfully");
+                }
+            }
+
+            // if no ARKs found yet register a new one
+            if (!foundExistingArk) {
+                if (document.isArkAllowed()) {
+                    // the journal records the new ARK until it is saved in the METS file
+                    ArkMintJournal journal = config.isJournalEnabled() ? ArkMintJournal.getInstance(config) : null;
+                    String element = document.getElementPath();
+                    ArkMintJournal.Entry interrupted = journal == null ? null : journal.findMinted(processId, element);
+                    long journalId = interrupted != null ? interrupted.getId() : journal != null ? journal.begin(processId, element) : 0;
+                    String myNewArk = null;
+                    try {
+                        if (interrupted != null) {
+                            myNewArk = reuseArk(processId, interrupted.getArk(), mdata);
+                        }
+                        if (myNewArk == null) {
+                            myNewArk = findUnsavedArk(index, processId, document, mdata);
+                        }
+                        if (myNewArk == null) {
+                            myNewArk = takeReservedArk(processId, mdata);
+                        }
+                        if (myNewArk != null && config.isOutboxEnabled()) {
+                            queued = true;
+                        } else {
+                            if (myNewArk == null) {
+                                try {
+                                    myNewArk = arkClient.mintArkWithMetadata(config.getShoulder(), mdata);
+                                } catch (ArkIncompleteMintException e) {
+                                    myNewArk = e.getArk();
+                                    ark = myNewArk;
+                                    saveIncompleteArk(journal, journalId, index, processId, document, myNewArk);
+                                    throw e;
+                                }
+                            }
+                            fingerprints.store(myNewArk, arkClient.createMetadataBodyString(mdata, myNewArk));
+                        }
+                        if (journal != null) {
+                            journal.minted(journalId, myNewArk);
+                        }
+                        ark = myNewArk;
+                        // the index knows the ARK even if the METS file cannot be written now
+                        if (index != null) {
+                            index.record(processId, document, myNewArk, mdata, arkClient.createMetadataBodyString(mdata, myNewArk));
+                        }
+                        ArkProcessLog.add(processId, LogType.INFO, "ARK: " + myNewArk + " was created successfully!");
+
+                        // save the mets file
+                        long writeStart = System.nanoTime();
+                        document.addArkAndSave(myNewArk);
+                        ArkMetrics.recordSince("ark.mets.write", writeStart);
+                        if (journal != null) {
+                            journal.completed(journalId);
+                        }
+                        successful = true;
+                    } finally {
+                        // no ARK was minted, an interrupted entry keeps its ARK for the next run
+                        if (journal != null && myNewArk == null && interrupted == null) {
+                            journal.failed(journalId);
+                        }
+                    }
+                } else {
+                    throw new MetadataTypeNotAllowedException(
+                            "This Metadataelement (" + config.getMetadataType() + ") is not allowed for the TopStruct, please update the ruleset!");
+                }
+            }
+
+        } catch (ArkCircuitOpenException e) {
+            // the service is down, leave the process untouched and try again later
+            log.warn(e.getMessage());
+            message = e.getMessage();
+            successful = false;
+            deferred = true;
+            ArkProcessLog.add(processId, LogType.INFO, "ARK registration was deferred: " + e.getMessage());
+        } catch (ReadException | PreferencesException | WriteException | IOException | SwapException | IllegalArgumentException
+                | MetadataTypeNotAllowedException e) {
+            log.error(e);
+            message = e.getMessage();
+            successful = false;
+            ArkProcessLog.add(processId, LogType.ERROR, e.getMessage());
+        }
+
+        ArkRegistrationResult.Outcome outcome;
+        if (deferred) {
+            outcome = ArkRegistrationResult.Outcome.DEFERRED;
+        } else if (!successful) {
+            outcome = ArkRegistrationResult.Outcome.FAILED;
+        } else if (queued) {
+            outcome = ArkRegistrationResult.Outcome.QUEUED;
+        } else if (foundExistingArk && allUnchanged) {
+            outcome = ArkRegistrationResult.Outcome.UNCHANGED;
+        } else if (foundExistingArk) {
+            outcome = ArkRegistrationResult.Outcome.UPDATED;
+        } else {
+            outcome = ArkRegistrationResult.Outcome.CREATED;
+        }
+        ArkMetrics.recordSince("ark.registration", startNanos);
+        ArkMetrics.increment("ark.registration." + outcome.name().toLowerCase(Locale.ROOT));
+        return new ArkRegistrationResult(processId, outcome, ark, message, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return number of updates of existing ARKs that were sent to the service since startup
+     */
+    public static long getSentUpdates() {
+        return ArkMetrics.getCount("ark.updates.sent");
+    }
+
+    /**
+     * @return number of updates of existing ARKs that were skipped because the metadata did not change since startup
+     */
+    public static long getSkippedUpdates() {
+        return ArkMetrics.getCount("ark.updates.skipped");
+    }
+
+    /**
+     * Saves an ARK that was minted but whose target could not be set. It is saved in the METS file without fingerprint, so the next run sends
+     * the update instead of minting another ARK.
+     */
+    private void saveIncompleteArk(ArkMintJournal journal, long journalId, ArkIndex index, int processId, ArkMetsDocument document,
+            String incompleteArk) throws IOException, SwapException, ReadException, PreferencesException, WriteException,
+            MetadataTypeNotAllowedException {
+        if (journal != null) {
+            journal.minted(journalId, incompleteArk);
+        }
+        if (index != null) {
+            index.recordIncomplete(processId, document, incompleteArk);
+        }
+        long writeStart = System.nanoTime();
+        document.addArkAndSave(incompleteArk);
+        ArkMetrics.recordSince("ark.mets.write", writeStart);
+        if (journal != null) {
+            journal.completed(journalId);
+        }
+        ArkProcessLog.add(processId, LogType.ERROR, "ARK: " + incompleteArk + " was created, but its target could not be set");
+    }
+
+    /**
+     * Looks in the index for an ARK that was minted for the element in an earlier run whose METS file could not be written. The ARK is updated
+     * with the current metadata and used instead of minting a new one.
+     *
+     * @return ARK or null if the index is disabled or there is no such ARK
+     */
+    private String findUnsavedArk(ArkIndex index, int processId, ArkMetsDocument document, ArkMetadata mdata) throws IOException {
+        if (index == null) {
+            return null;
+        }
+        String unsavedArk = index.findUnsavedArk(processId, document.getElementPath(), document.getExistingArks());
+        if (unsavedArk == null) {
+            return null;
+        }
+        return reuseArk(processId, unsavedArk, mdata);
+    }
+
+    /**
+     * Updates an ARK that was minted before but is missing in the METS file with the current metadata. In outbox mode the update is only
+     * queued.
+     *
+     * @return the ARK
+     */
+    private String reuseArk(int processId, String unsavedArk, ArkMetadata mdata) throws IOException {
+        log.info("ARK " + unsavedArk + " was minted for process " + processId + " before but is missing in the METS file, it is used again");
+        if (config.isOutboxEnabled()) {
+            ArkOutbox.getInstance(config).enqueue(processId, unsavedArk, mdata.toHashMap());
+        } else if (!arkClient.updateArk(unsavedArk, mdata)) {
+            throw new ClientProtocolException("Unable to update ARK " + unsavedArk);
+        }
+        return unsavedArk;
+    }
+
+    /**
+     * Takes a reserved ARK from the pool and publishes it with the metadata. In outbox mode the update is only queued. If the ARK cannot be
+     * published because of a temporary problem, it is put back into the pool; an ARK the service rejected is dropped.
+     *
+     * @param processId id of the process
+     * @param mdata metadata of the new ARK
+     * @return reserved ARK or null if the pool is disabled or empty
+     */
+    private String takeReservedArk(int processId, ArkMetadata mdata) throws IOException {
+        if (!config.isReservePoolEnabled()) {
+            return null;
+        }
+        ArkReservePool pool = ArkReservePool.getInstance(config);
+        String reservedArk = pool.take();
+        if (reservedArk == null) {
+            log.debug("ARK reserve pool for shoulder " + config.getShoulder() + " is empty, minting a new ARK");
+            return null;
+        }
+        ArkMetadata publicMetadata = mdata.toBuilder().set(ArkInternalEnumeration._status, "public").build();
+        boolean rejected;
+        try {
+            if (config.isOutboxEnabled()) {
+                ArkOutbox.getInstance(config).enqueue(processId, reservedArk, publicMetadata.toHashMap());
+                rejected = false;
+            } else {
+                rejected = !arkClient.updateArk(reservedArk, publicMetadata);
+            }
+        } catch (ArkFatalException e) {
+            log.warn("Reserved ARK " + reservedArk + " was rejected by the service and is removed from the pool");
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // the ARK is not used by this process, it stays available for the next one
+            pool.giveBack(reservedArk);
+            throw e;
+        }
+        if (rejected) {
+            log.warn("Reserved ARK " + reservedArk + " was rejected by the service and is removed from the pool");
+            throw new ClientProtocolException("Unable to publish reserved ARK " + reservedArk);
+        }
+        return reservedArk;
+    }
+
+    /**
+     * Opens the METS file with the streaming reader if it is enabled and all configured variables can be resolved by it, otherwise the
+     * complete file is read
+     */
+    static ArkMetsDocument openDocument(ArkPluginConfiguration config, Process process, Step step) throws ReadException, PreferencesException, IOException, SwapException {
+        if (config.isStreamingMets() && config.getTemplates().isStreamingSupported()) {
+            ArkMetsDocument document = ArkStreamingDocument.open(process, step, config.getMetadataType());
+            if (document != null) {
+                return document;
+            }
+            log.debug("Logical element of process " + process.getId() + " not found by the streaming reader, reading complete METS file");
+        }
+        return new ArkUghDocument(process, step, config.getMetadataType());
+    }
+}
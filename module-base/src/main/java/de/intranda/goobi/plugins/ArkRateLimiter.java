@@ -0,0 +1,118 @@
+package de.intranda.goobi.plugins;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that limits the number of requests sent to one ARK service account. The limiter is shared by all threads of the JVM, so
+ * parallel step executions stay below the request quota of the provider. Bursts up to the bucket size are sent immediately, further requests
+ * wait for their permit.
+ */
+public class ArkRateLimiter {
+
+    private static final Map<String, ArkRateLimiter> limiters = new ConcurrentHashMap<>();
+
+    private volatile double permitsPerSecond;
+    private volatile double burst;
+
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong permits = new AtomicLong();
+    private final AtomicLong delayedPermits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ArkRateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Returns the JVM wide limiter of a service account. The rate of an existing limiter is updated to the given values.
+     *
+     * @param uri URL of the ark service
+     * @param user name of the API user
+     * @param permitsPerSecond number of requests per second
+     * @param burst number of requests that can be sent at once after a quiet period
+     * @return rate limiter
+     */
+    public static ArkRateLimiter getInstance(String uri, String user, double permitsPerSecond, int burst) {
+        ArkRateLimiter limiter = limiters.computeIfAbsent(uri + "|" + user, k -> new ArkRateLimiter(permitsPerSecond, burst));
+        limiter.permitsPerSecond = permitsPerSecond;
+        limiter.burst = Math.max(1, burst);
+        return limiter;
+    }
+
+    /**
+     * Blocks until a request may be sent
+     *
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire() throws InterruptedIOException {
+        long wait = reserve();
+        permits.incrementAndGet();
+        if (wait <= 0) {
+            return;
+        }
+        delayedPermits.incrementAndGet();
+        waitNanos.addAndGet(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request permit");
+        }
+    }
+
+    /**
+     * Takes a token from the bucket. If the bucket is empty the token is borrowed from the future and the caller has to wait until it would
+     * have been refilled.
+     *
+     * @return nanoseconds to wait before the request may be sent
+     */
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerSecond / 1_000_000_000d);
+        lastRefill = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * 1_000_000_000d / permitsPerSecond);
+    }
+
+    /**
+     * @return number of permits handed out since startup
+     */
+    public long getPermits() {
+        return permits.get();
+    }
+
+    /**
+     * @return number of permits that had to wait
+     */
+    public long getDelayedPermits() {
+        return delayedPermits.get();
+    }
+
+    /**
+     * @return total time in milliseconds spent waiting for permits
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    /**
+     * @return longest time in milliseconds a single request waited for its permit
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+}
@@ -0,0 +1,401 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.goobi.beans.Process;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.MetadataManager;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+
+/**
+ * Compares the metadata held by the ARK service with the metadata that the plugin would send for the METS files of all processes with an ARK.
+ * Differences are written to a CSV report line by line, so the job needs little memory even for hundreds of thousands of ARKs. Optionally a
+ * corrective update is queued in the {@link ArkOutbox} for every ARK with differences.
+ * <p>
+ * The remote metadata is either requested ARK by ARK with a bounded number of parallel requests or read from a bulk download of the service.
+ */
+@Log4j2
+public class ArkReconciliationJob {
+
+    private static final String[] HEADER = { "processId", "ark", "status", "field", "expected", "actual" };
+
+    private final ArkPluginConfiguration config;
+    private final ArkRestClient client;
+    private final int threads;
+
+    private final Summary summary = new Summary();
+    private Writer report;
+
+    /**
+     * @param config plugin configuration, defines the metadata type and the templates of the expected metadata
+     * @param client client for the ARK service
+     * @param threads number of processes that are compared in parallel
+     */
+    public ArkReconciliationJob(ArkPluginConfiguration config, ArkRestClient client, int threads) {
+        this.config = config;
+        this.client = client;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Compares all processes that match the filter and have an ARK
+     *
+     * @param filter additional Goobi process filter as SQL condition, can be null
+     * @param dumpFile ANVL bulk download of the service, can be gzipped; if null the metadata is requested for every ARK
+     * @param reportFile CSV file for the differences
+     * @param enqueueUpdates true to queue corrective updates
+     * @return counts of the compared ARKs
+     * @throws IOException if the report or the dump could not be read or written
+     */
+    public Summary run(String filter, Path dumpFile, Path reportFile, boolean enqueueUpdates) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Integer> processIds = ProcessManager.getIdsForFilter(createFilter(filter));
+        log.info("ARK reconciliation of " + processIds.size() + " processes started");
+
+        Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        try (Writer writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            report = writer;
+            writeRow(HEADER);
+            if (dumpFile == null) {
+                compareLive(processIds, enqueueUpdates);
+            } else {
+                compareDump(processIds, dumpFile, enqueueUpdates);
+            }
+        } finally {
+            report = null;
+        }
+        summary.durationMillis = System.currentTimeMillis() - start;
+        log.info("ARK reconciliation finished: " + summary);
+        return summary;
+    }
+
+    /**
+     * Requests the metadata of every ARK. Each worker handles one process at a time, so at most threads requests are open. The job stops when
+     * the circuit breaker considers the service unavailable.
+     */
+    private void compareLive(List<Integer> processIds, boolean enqueueUpdates) {
+        AtomicInteger next = new AtomicInteger();
+        runWorkers(() -> {
+            int index;
+            while (!summary.interrupted && (index = next.getAndIncrement()) < processIds.size() && !Thread.currentThread().isInterrupted()) {
+                int processId = processIds.get(index);
+                try {
+                    compareProcess(processId, enqueueUpdates);
+                } catch (RuntimeException e) {
+                    log.error("ARK reconciliation of process " + processId + " failed", e);
+                    summary.errors.incrementAndGet();
+                    writeRow(String.valueOf(processId), "", "ERROR", "", "", String.valueOf(e.getMessage()));
+                }
+            }
+        });
+    }
+
+    private void compareProcess(int processId, boolean enqueueUpdates) {
+        ExpectedMetadata expected = loadExpected(processId);
+        if (expected == null) {
+            return;
+        }
+        for (String ark : expected.arks) {
+            Map<String, String> remote;
+            try {
+                remote = client.getMetadataMap(ark);
+            } catch (ArkCircuitOpenException e) {
+                // the remaining ARKs would all fail, a later run compares them
+                if (!summary.interrupted) {
+                    log.warn("ARK reconciliation stopped, the service is unavailable: " + e.getMessage());
+                }
+                summary.interrupted = true;
+                return;
+            } catch (ArkFatalException e) {
+                if (e.getStatusCode() != 400 && e.getStatusCode() != 404) {
+                    summary.errors.incrementAndGet();
+                    writeRow(String.valueOf(processId), ark, "ERROR", "", "", e.getMessage());
+                    continue;
+                }
+                summary.missing.incrementAndGet();
+                writeRow(String.valueOf(processId), ark, "MISSING", "", "", e.getMessage());
+                continue;
+            } catch (IOException e) {
+                summary.errors.incrementAndGet();
+                writeRow(String.valueOf(processId), ark, "ERROR", "", "", e.getMessage());
+                continue;
+            }
+            compare(processId, ark, expected.metadata, remote, enqueueUpdates);
+        }
+    }
+
+    /**
+     * Reads the bulk download record by record and compares every record that belongs to one of the processes. Only the assignment of ARKs to
+     * processes is kept in memory. The expected metadata of a process is read once and kept until all its ARKs were compared. ARKs that are
+     * missing in the dump are not reported. An ARK that is used by more than one process, e.g. of a copied process, is compared for the first
+     * process only and reported as duplicate for the others.
+     */
+    private void compareDump(List<Integer> processIds, Path dumpFile, boolean enqueueUpdates) throws IOException {
+        Map<String, Integer> processByArk = new HashMap<>(processIds.size() * 2);
+        Map<Integer, AtomicInteger> remainingArks = new HashMap<>(processIds.size() * 2);
+        for (Integer processId : processIds) {
+            for (String ark : MetadataManager.getAllMetadataValues(processId, config.getMetadataType())) {
+                Integer owner = processByArk.putIfAbsent(ark.trim(), processId);
+                if (owner == null) {
+                    remainingArks.computeIfAbsent(processId, k -> new AtomicInteger()).incrementAndGet();
+                } else if (!owner.equals(processId)) {
+                    summary.duplicates.incrementAndGet();
+                    writeRow(String.valueOf(processId), ark.trim(), "DUPLICATE", "", "", "also used by process " + owner);
+                }
+            }
+        }
+        Map<Integer, Optional<ExpectedMetadata>> expectedByProcess = new ConcurrentHashMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ArkBatchRegistrar.WorkerThreadFactory("ark-reconcile-"));
+        // limits the number of records waiting for a worker
+        Semaphore queued = new Semaphore(threads * 4);
+        try (InputStream in = openDump(dumpFile);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String ark = null;
+            StringBuilder record = new StringBuilder();
+            String line;
+            while (true) {
+                line = reader.readLine();
+                if (line == null || line.startsWith("::")) {
+                    Integer processId = ark == null ? null : processByArk.get(ark);
+                    if (processId != null) {
+                        String body = record.toString();
+                        String currentArk = ark;
+                        queued.acquire();
+                        executor.execute(() -> {
+                            try {
+                                Optional<ExpectedMetadata> expected = expectedByProcess.computeIfAbsent(processId,
+                                        id -> Optional.ofNullable(loadExpected(id)));
+                                compareRecord(processId, currentArk, expected.orElse(null), body, enqueueUpdates);
+                            } catch (RuntimeException e) {
+                                log.error("ARK reconciliation of " + currentArk + " failed", e);
+                                summary.errors.incrementAndGet();
+                                writeRow(String.valueOf(processId), currentArk, "ERROR", "", "", String.valueOf(e.getMessage()));
+                            } finally {
+                                try {
+                                    if (remainingArks.get(processId).decrementAndGet() == 0) {
+                                        expectedByProcess.remove(processId);
+                                    }
+                                } finally {
+                                    queued.release();
+                                }
+                            }
+                        });
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    ark = line.substring(2).trim();
+                    record.setLength(0);
+                } else {
+                    record.append(line).append('\n');
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("ARK reconciliation was interrupted");
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+    }
+
+    private void compareRecord(int processId, String ark, ExpectedMetadata expected, String body, boolean enqueueUpdates) {
+        if (expected != null && expected.arks.contains(ark)) {
+            compare(processId, ark, expected.metadata, ArkAnvl.parse(body), enqueueUpdates);
+        }
+    }
+
+    private ExpectedMetadata loadExpected(int processId) {
+        Process process = ProcessManager.getProcessById(processId);
+        if (process == null) {
+            return null;
+        }
+        try {
+            ArkMetsDocument document = ArkProcessRegistrar.openDocument(config, process, null);
+            ExpectedMetadata expected = new ExpectedMetadata();
+            expected.arks = document.getExistingArks();
+            expected.metadata = config.getTemplates().createMetadata(document);
+            return expected;
+        } catch (ReadException | PreferencesException | IOException | SwapException | IllegalArgumentException e) {
+            summary.errors.incrementAndGet();
+            writeRow(String.valueOf(processId), "", "ERROR", "", "", e.getMessage());
+            return null;
+        }
+    }
+
+    private void compare(int processId, String ark, ArkMetadata expected, Map<String, String> remote, boolean enqueueUpdates) {
+        summary.checked.incrementAndGet();
+        boolean different = false;
+        for (Map.Entry<String, String> entry : expected.asMap().entrySet()) {
+            String expectedValue = entry.getValue();
+            if (ArkInternalEnumeration._target.toString().equals(entry.getKey())) {
+                expectedValue = expectedValue.replace("{pi.ark}", ark);
+            }
+            String actual = remote.get(entry.getKey());
+            if (!expectedValue.equals(actual)) {
+                different = true;
+                writeRow(String.valueOf(processId), ark, "MISMATCH", entry.getKey(), expectedValue, actual == null ? "" : actual);
+            }
+        }
+        if (!different) {
+            summary.matching.incrementAndGet();
+            return;
+        }
+        summary.mismatching.incrementAndGet();
+        if (enqueueUpdates) {
+            try {
+                ArkOutbox.getInstance(config).enqueue(processId, ark, expected.toHashMap());
+                summary.queued.incrementAndGet();
+            } catch (IOException e) {
+                log.error("Could not queue corrective update of " + ark, e);
+            }
+        }
+    }
+
+    private void runWorkers(Runnable worker) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ArkBatchRegistrar.WorkerThreadFactory("ark-reconcile-"));
+        for (int i = 0; i < threads; i++) {
+            executor.execute(worker);
+        }
+        executor.shutdown();
+        awaitTermination(executor);
+    }
+
+    private void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("ARK reconciliation: " + summary);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String createFilter(String filter) {
+        String condition = "prozesse.ProzesseID IN (SELECT processid FROM metadata WHERE name = '"
+                + config.getMetadataType().replace("'", "''") + "')";
+        return filter == null || filter.isBlank() ? condition : condition + " AND (" + filter + ")";
+    }
+
+    private static InputStream openDump(Path dumpFile) throws IOException {
+        InputStream in = Files.newInputStream(dumpFile);
+        return dumpFile.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    private synchronized void writeRow(String... values) {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    report.write(',');
+                }
+                String value = values[i] == null ? "" : values[i];
+                if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                    report.write('"');
+                    report.write(value.replace("\"", "\"\""));
+                    report.write('"');
+                } else {
+                    report.write(value);
+                }
+            }
+            report.write('\n');
+        } catch (IOException e) {
+            log.error("Could not write ARK reconciliation report", e);
+        }
+    }
+
+    private static class ExpectedMetadata {
+        private List<String> arks = new ArrayList<>();
+        private ArkMetadata metadata;
+    }
+
+    /**
+     * Counts of a reconciliation run
+     */
+    public static class Summary {
+        private final AtomicInteger checked = new AtomicInteger();
+        private final AtomicInteger matching = new AtomicInteger();
+        private final AtomicInteger mismatching = new AtomicInteger();
+        private final AtomicInteger missing = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        private final AtomicInteger duplicates = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private volatile boolean interrupted;
+        private long durationMillis;
+
+        public int getChecked() {
+            return checked.get();
+        }
+
+        public int getMatching() {
+            return matching.get();
+        }
+
+        public int getMismatching() {
+            return mismatching.get();
+        }
+
+        public int getMissing() {
+            return missing.get();
+        }
+
+        public int getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return number of ARKs that are used by more than one process, counted once for every additional process
+         */
+        public int getDuplicates() {
+            return duplicates.get();
+        }
+
+        public int getQueued() {
+            return queued.get();
+        }
+
+        /**
+         * @return true if the job stopped because the service became unavailable, the remaining ARKs were not compared
+         */
+        public boolean isInterrupted() {
+            return interrupted;
+        }
+
+        public boolean isSuccessful() {
+            return !interrupted && errors.get() == 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d ARKs checked in %d ms: %d matching, %d with differences, %d missing, %d errors, %d duplicates, %d updates queued%s",
+                    getChecked(), durationMillis, getMatching(), getMismatching(), getMissing(), getErrors(), getDuplicates(), getQueued(),
+                    interrupted ? ", interrupted" : "");
+        }
+    }
+}
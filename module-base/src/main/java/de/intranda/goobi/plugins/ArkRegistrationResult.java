@@ -0,0 +1,42 @@
+package de.intranda.goobi.plugins;
+
+import lombok.Getter;
+
+/**
+ * Outcome of the ARK registration of a single process
+ */
+@Getter
+public class ArkRegistrationResult {
+
+    public enum Outcome {
+        CREATED,
+        UPDATED,
+        UNCHANGED,
+        QUEUED,
+        DEFERRED,
+        FAILED
+    }
+
+    private final int processId;
+    private final Outcome outcome;
+    private final String ark;
+    private final String message;
+    private final long durationMillis;
+
+    public ArkRegistrationResult(int processId, Outcome outcome, String ark, String message, long durationMillis) {
+        this.processId = processId;
+        this.outcome = outcome;
+        this.ark = ark;
+        this.message = message;
+        this.durationMillis = durationMillis;
+    }
+
+    public boolean isSuccessful() {
+        return outcome != Outcome.FAILED && outcome != Outcome.DEFERRED;
+    }
+
+    @Override
+    public String toString() {
+        return processId + ": " + outcome + (ark == null ? "" : " " + ark) + (message == null ? "" : " - " + message);
+    }
+}
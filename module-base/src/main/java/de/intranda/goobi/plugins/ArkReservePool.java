@@ -0,0 +1,172 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Pool of ARKs that were minted in advance with the status reserved. The ARKs are stored in a file in the storage folder, so they survive a
+ * restart. A background worker mints new ARKs as soon as the number of available ARKs drops below the low-water mark.
+ */
+@Log4j2
+public class ArkReservePool {
+
+    private static final Map<String, ArkReservePool> pools = new ConcurrentHashMap<>();
+
+    static {
+        ArkMetrics.gauge("ark.reservePool.available", () -> pools.values().stream().mapToInt(ArkReservePool::getAvailable).sum());
+    }
+
+    private final ArkRestClient client;
+    private final String shoulder;
+    private final Path storageFile;
+    private final int size;
+    private final int lowWaterMark;
+    private final ExecutorService refillExecutor;
+
+    private final Deque<String> available = new ArrayDeque<>();
+    private int pending;
+
+    private ArkReservePool(ArkRestClient client, String shoulder, Path storageFile, int size, int lowWaterMark, int refillThreads) {
+        this.client = client;
+        this.shoulder = shoulder;
+        this.storageFile = storageFile;
+        this.size = size;
+        this.lowWaterMark = lowWaterMark;
+        AtomicInteger counter = new AtomicInteger();
+        this.refillExecutor = Executors.newFixedThreadPool(Math.max(1, refillThreads), r -> {
+            Thread thread = new Thread(r, "ark-reserve-" + shoulder + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the pool of the configured shoulder. The pool is created and filled on first use.
+     *
+     * @param config plugin configuration
+     * @return shared pool
+     */
+    public static ArkReservePool getInstance(ArkPluginConfiguration config) {
+        String key = config.getUri() + "|" + config.getNaan() + "|" + config.getApiUser() + "|" + config.getShoulder();
+        return pools.computeIfAbsent(key, k -> {
+            Path file = Paths.get(config.getStorageFolder(), "reserve_" + config.getNaan() + "_" + config.getShoulder() + ".txt");
+            ArkReservePool pool = new ArkReservePool(config.createClient(), config.getShoulder(), file, config.getReservePoolSize(),
+                    config.getReservePoolLowWaterMark(), config.getReservePoolRefillThreads());
+            pool.load();
+            pool.refillIfNeeded();
+            return pool;
+        });
+    }
+
+    /**
+     * Takes a reserved ARK from the pool. The ARK is removed from the storage file before it is returned.
+     *
+     * @return reserved ARK or null if the pool is empty
+     */
+    public String take() {
+        String ark;
+        synchronized (this) {
+            ark = available.pollFirst();
+            if (ark != null) {
+                save();
+            }
+        }
+        refillIfNeeded();
+        return ark;
+    }
+
+    /**
+     * Puts a taken ARK back into the pool, e.g. because it could not be published. It is the next one that is taken.
+     *
+     * @param ark reserved ARK
+     */
+    public synchronized void giveBack(String ark) {
+        if (!available.contains(ark)) {
+            available.addFirst(ark);
+            save();
+        }
+    }
+
+    /**
+     * @return number of ARKs that can be taken right now
+     */
+    public synchronized int getAvailable() {
+        return available.size();
+    }
+
+    private void refillIfNeeded() {
+        int missing;
+        synchronized (this) {
+            if (available.size() + pending > lowWaterMark) {
+                return;
+            }
+            missing = size - available.size() - pending;
+            pending += missing;
+        }
+        log.debug("Refilling ARK reserve pool for shoulder " + shoulder + " with " + missing + " ARKs");
+        for (int i = 0; i < missing; i++) {
+            refillExecutor.submit(this::mintReserved);
+        }
+    }
+
+    private void mintReserved() {
+        String ark = null;
+        try {
+            HashMap<String, String> metadata = new HashMap<>();
+            metadata.put(ArkInternalEnumeration._status.toString(), "reserved");
+            ark = client.mintArkWithMetadata(shoulder, metadata).trim();
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Could not mint reserved ARK on shoulder " + shoulder, e);
+        }
+        synchronized (this) {
+            pending--;
+            if (ark != null) {
+                available.addLast(ark);
+                save();
+            }
+        }
+    }
+
+    private synchronized void load() {
+        if (!Files.exists(storageFile)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(storageFile, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    available.addLast(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Could not read ARK reserve pool from " + storageFile, e);
+        }
+    }
+
+    private synchronized void save() {
+        try {
+            Files.createDirectories(storageFile.getParent());
+            Path tmp = storageFile.resolveSibling(storageFile.getFileName() + ".tmp");
+            List<String> lines = new ArrayList<>(available);
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, storageFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not write ARK reserve pool to " + storageFile, e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * ANVL response of the ARK service. The first line is the status line, either "success: ark:/..." or "error: reason", it is followed by the
+ * metadata of the identifier for read requests.
+ */
+@Getter
+public class ArkResponse {
+
+    private static final String SUCCESS = "success";
+
+    private final boolean success;
+    /** text of the status line, the identifier for successful requests or the reason of an error */
+    private final String status;
+    /** names and unescaped values of the lines after the status line */
+    private final Map<String, String> metadata;
+
+    private ArkResponse(boolean success, String status, Map<String, String> metadata) {
+        this.success = success;
+        this.status = status;
+        this.metadata = metadata;
+    }
+
+    /**
+     * @return identifier of the status line, null if the request failed
+     */
+    public String getIdentifier() {
+        return success ? status : null;
+    }
+
+    /**
+     * Collects the lines of a response as they are parsed
+     */
+    static class Builder {
+        private String statusName;
+        private String status;
+        private final Map<String, String> metadata = new LinkedHashMap<>();
+
+        void accept(String name, String value) {
+            if (statusName == null) {
+                statusName = name;
+                status = value;
+            } else {
+                metadata.put(name, value);
+            }
+        }
+
+        ArkResponse build() {
+            return new ArkResponse(SUCCESS.equals(statusName), status, metadata);
+        }
+    }
+}
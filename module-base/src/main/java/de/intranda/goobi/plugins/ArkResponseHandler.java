@@ -1,34 +1,277 @@
 package de.intranda.goobi.plugins;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 
+/**
+ * Reads the body of a successful response as String. Bodies are read from the
+ * stream with a maximum size, the connection is released to the pool after
+ * every response, error bodies are read only as far as needed for the message.
+ */
 public class ArkResponseHandler implements ResponseHandler<String> {
 
+	/** default maximum size of a response body in bytes */
+	public static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+	/** number of characters of an error body that are used for the message */
+	private static final int MAX_ERROR_LENGTH = 1024;
+
+	private final int maxBodySize;
+
+	public ArkResponseHandler() {
+		this(DEFAULT_MAX_BODY_SIZE);
+	}
+
+	/**
+	 * @param maxBodySize maximum size of a response body in bytes
+	 */
+	public ArkResponseHandler(int maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
 
 	@Override
 	public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+		StringBuilder body = new StringBuilder(128);
+		read(checkStatus(response), maxBodySize, body::append);
+		return body.toString();
+	}
+
+	/**
+	 * Helper method that parses the ANVL body of a successful response while it
+	 * is read from the connection
+	 * 
+	 * @param response    http response
+	 * @param maxBodySize maximum size of the body in bytes
+	 * @param consumer    receives name and unescaped value of every line
+	 * @throws ArkFatalException if the body is larger than maxBodySize
+	 * @throws IOException
+	 */
+	static void parse(HttpResponse response, int maxBodySize, BiConsumer<String, String> consumer)
+			throws ClientProtocolException, IOException {
+		HttpEntity entity = checkStatus(response);
+		int status = response.getStatusLine().getStatusCode();
+		checkLength(entity, status, maxBodySize);
+		InputStream in = entity.getContent();
+		try (Reader reader = new InputStreamReader(new BoundedInputStream(in, maxBodySize), StandardCharsets.UTF_8)) {
+			ArkAnvl.parse(reader, consumer);
+		} catch (BodyTooLargeException e) {
+			throw new ArkFatalException(status, status + ": reason-> response is larger than " + maxBodySize + " bytes");
+		}
+	}
+
+	/**
+	 * Helper method that reads a successful response into a typed result
+	 * 
+	 * @param response    http response
+	 * @param maxBodySize maximum size of the body in bytes
+	 * @return parsed response
+	 * @throws IOException
+	 */
+	static ArkResponse toArkResponse(HttpResponse response, int maxBodySize) throws ClientProtocolException, IOException {
+		ArkResponse.Builder builder = new ArkResponse.Builder();
+		parse(response, maxBodySize, builder::accept);
+		return builder.build();
+	}
+
+	/**
+	 * Helper method that checks the status of a response and throws the matching
+	 * exception if it is not successful. The body of an error response is
+	 * released, so the connection can be reused.
+	 * 
+	 * @param response http response
+	 * @return entity of the successful response
+	 * @throws ArkRetryableException   if the service has a temporary problem
+	 * @throws ArkFatalException       if the service rejected the request
+	 * @throws ClientProtocolException if a successful response has no body
+	 * @throws IOException
+	 */
+	static HttpEntity checkStatus(HttpResponse response) throws ClientProtocolException, IOException {
 		int status = response.getStatusLine().getStatusCode();
+		ArkMetrics.increment("ark.status." + status / 100 + "xx");
 		HttpEntity entity = response.getEntity();
 		if (status >= 200 && status < 300) {
 
 			if (entity == null) {
 				throw new ClientProtocolException(status + ": reason-> " + "no response provided");
 			} else {
-				return EntityUtils.toString(entity, Charset.forName("utf-8"));
+				return entity;
 			}
 		} else {
-			if (status == 400) {
-				throw new ClientProtocolException(status + ": reason-> " + (entity == null ? "no response body received"
-						: EntityUtils.toString(entity, Charset.forName("utf-8"))));
+			String message = status == 400 ? readErrorMessage(entity) : null;
+			release(entity);
+			if (isRetryable(status)) {
+				throw new ArkRetryableException(status, status + ": reason-> " + response.getStatusLine().getReasonPhrase(),
+						getRetryAfterMillis(response));
+			} else if (status == 400) {
+				throw new ArkFatalException(status, status + ": reason-> " + (message == null ? "no response body received" : message));
 			} else
-				throw new ClientProtocolException(status + ": reason-> " + " unhandeld error");
+				throw new ArkFatalException(status, status + ": reason-> " + " unhandeld error");
+		}
+	}
+
+	/**
+	 * Helper method that reads the body of a successful response as text
+	 */
+	private static void read(HttpEntity entity, int maxBodySize, Consumer<CharSequence> consumer) throws IOException {
+		checkLength(entity, 200, maxBodySize);
+		InputStream in = entity.getContent();
+		char[] chunk = new char[512];
+		try (Reader reader = new InputStreamReader(new BoundedInputStream(in, maxBodySize), StandardCharsets.UTF_8)) {
+			int read;
+			while ((read = reader.read(chunk)) != -1) {
+				consumer.accept(CharBuffer.wrap(chunk, 0, read));
+			}
+		} catch (BodyTooLargeException e) {
+			throw new ArkFatalException(200, "200: reason-> response is larger than " + maxBodySize + " bytes");
+		}
+	}
+
+	/**
+	 * Fails before reading if the announced length is already too large
+	 */
+	private static void checkLength(HttpEntity entity, int status, int maxBodySize) throws IOException {
+		if (entity.getContentLength() > maxBodySize) {
+			abort(entity.getContent());
+			throw new ArkFatalException(status, status + ": reason-> response is larger than " + maxBodySize + " bytes");
+		}
+	}
+
+	/**
+	 * Helper method that reads the beginning of an error body, e.g. "error: bad
+	 * request - no such identifier". HTML error pages are not used as message.
+	 */
+	private static String readErrorMessage(HttpEntity entity) throws IOException {
+		if (entity == null) {
+			return null;
+		}
+		ContentType contentType = ContentType.get(entity);
+		if (contentType != null && !"text/plain".equalsIgnoreCase(contentType.getMimeType())) {
+			return contentType.getMimeType() + " response";
+		}
+		char[] buffer = new char[MAX_ERROR_LENGTH];
+		int length = 0;
+		Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8);
+		int read;
+		while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+			length += read;
+		}
+		return new String(buffer, 0, length).trim();
+	}
+
+	/**
+	 * Helper method that releases the connection of an error response. Short
+	 * bodies are skipped so the connection can be reused, the connection of long
+	 * or unknown bodies is closed instead of reading them completely.
+	 */
+	private static void release(HttpEntity entity) throws IOException {
+		if (entity == null) {
+			return;
+		}
+		long length = entity.getContentLength();
+		if (length >= 0 && length <= MAX_ERROR_LENGTH * 8) {
+			EntityUtils.consume(entity);
+		} else if (entity.isStreaming()) {
+			abort(entity.getContent());
+		}
+	}
+
+	private static void abort(InputStream in) throws IOException {
+		if (in instanceof EofSensorInputStream) {
+			((EofSensorInputStream) in).abortConnection();
+		} else if (in != null) {
+			in.close();
+		}
+	}
+
+	/**
+	 * Stream that aborts the connection and fails as soon as more than the
+	 * allowed number of bytes is read. The connection is aborted before the
+	 * stream is closed, as closing it would read the rest of the body.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long maxBytes) {
+			super(in);
+			this.remaining = maxBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1 && --remaining < 0) {
+				tooLarge();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0 && (remaining -= read) < 0) {
+				tooLarge();
+			}
+			return read;
+		}
+
+		private void tooLarge() throws IOException {
+			abort(in);
+			throw new BodyTooLargeException();
+		}
+	}
+
+	private static class BodyTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Helper method that decides if a status code signals a temporary problem of
+	 * the service
+	 * 
+	 * @param status http status code
+	 * @return true for 408, 429 and all server errors except 501
+	 */
+	static boolean isRetryable(int status) {
+		return status == 408 || status == 429 || (status >= 500 && status != 501);
+	}
+
+	/**
+	 * Helper method that reads the Retry-After header, which contains either a
+	 * number of seconds or a http date
+	 * 
+	 * @param response http response
+	 * @return requested delay in milliseconds or -1 if there is no valid header
+	 */
+	static long getRetryAfterMillis(HttpResponse response) {
+		Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+		if (header == null || header.getValue() == null) {
+			return -1;
+		}
+		String value = header.getValue().trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+			return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
 		}
 	}
 }
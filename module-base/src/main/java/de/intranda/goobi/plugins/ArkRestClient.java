@@ -1,19 +1,35 @@
 package de.intranda.goobi.plugins;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.fluent.Request;
-import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
 
 public class ArkRestClient {
 
 	private String uri;
 	private String nameAssigningAuthorityNumber;
 	private String auth;
+	private volatile ArkConnectionPool.PooledClient pool;
+	private ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+	private ArkCircuitBreaker circuitBreaker;
+	private ArkRateLimiter rateLimiter;
+	private ArkMetadataCache metadataCache;
+	private int maxResponseSize;
 
 	/**
 	 * @param Uri      URL of the ark service
@@ -22,11 +38,81 @@ public class ArkRestClient {
 	 * @param Password Password of the User
 	 */
 	public ArkRestClient(String Uri, String NAAN, String User, String Password) {
+		this(Uri, NAAN, User, Password, new ArkConnectionSettings());
+	}
+
+	/**
+	 * @param Uri      URL of the ark service
+	 * @param NAAN     Name Assigning Authority Number
+	 * @param User     Username of the API User
+	 * @param Password Password of the User
+	 * @param settings settings of the pooled connection, the pool is shared with
+	 *                 all clients using the same URL, NAAN and User
+	 */
+	public ArkRestClient(String Uri, String NAAN, String User, String Password, ArkConnectionSettings settings) {
 		this.auth = Base64.getEncoder().encodeToString((User + ":" + Password).getBytes());
 		if (!Uri.startsWith("https"))
 			throw new IllegalArgumentException("Bad URL - only https is permitted");
 		uri = (!Uri.endsWith("/")) ? Uri + "/" : Uri;
 		nameAssigningAuthorityNumber = NAAN;
+		pool = ArkConnectionPool.getPooledClient(uri, NAAN, User, settings);
+		maxResponseSize = settings.getMaxResponseSize();
+		circuitBreaker = ArkCircuitBreaker.getInstance(uri + "|" + NAAN + "|" + User, 5, 60000);
+	}
+
+	/**
+	 * @param retryPolicy policy that decides if failed requests are repeated
+	 */
+	public void setRetryPolicy(ArkRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @param circuitBreaker circuit breaker shared by all clients of the service
+	 */
+	public void setCircuitBreaker(ArkCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * @return circuit breaker shared by all clients of the service
+	 */
+	public ArkCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Checks if the service answers at all. A single HEAD request is sent to the
+	 * URL of the service, without retries, circuit breaker and rate limit.
+	 * 
+	 * @return true if the service answered with a status below 500
+	 */
+	public boolean isAvailable() {
+		ArkConnectionPool.PooledClient pooled = acquirePool();
+		try {
+			int status = pooled.getExecutor().execute(Request.Head(uri)).handleResponse(response -> response.getStatusLine().getStatusCode());
+			return status < 500;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			pooled.release();
+		}
+	}
+
+	/**
+	 * @param rateLimiter limiter shared by all clients of the account, null
+	 *                    disables the limit
+	 */
+	public void setRateLimiter(ArkRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @param metadataCache cache for the metadata of the Keys, shared by all
+	 *                      clients of the account, null disables the cache
+	 */
+	public void setMetadataCache(ArkMetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
 	}
 
 	/**
@@ -53,7 +139,12 @@ public class ArkRestClient {
 	}
 
 	/**
-	 * Mints a new Archival Resource Key with Metadata on the provided shoulder
+	 * Mints a new Archival Resource Key with Metadata on the provided shoulder.
+	 * The metadata is sent with the mint request, so only one request is needed.
+	 * If the _target contains the placeholder {pi.ark} the Key is minted without
+	 * a target first and the target is set with a second, small update request.
+	 * If this update fails, an {@link ArkIncompleteMintException} with the new Key
+	 * is thrown, so the caller can record it and update it later.
 	 * 
 	 * @param shoulder shoulder on which the new Key will be minted
 	 * @param metadata Hashmap with metadata relevant to the Key
@@ -65,9 +156,45 @@ public class ArkRestClient {
 	public String mintArkWithMetadata(String shoulder, HashMap<String, String> metadata)
 			throws ClientProtocolException, IOException, IllegalArgumentException {
 		validateKeysOfMetadataHashMap(metadata);
-		String ARK = mintArk(shoulder);
-		if (!updateArk(ARK, metadata))
-		    throw new ClientProtocolException("Unable to update " + ARK + "no URL was registered" );
+		return mintArkWithValidMetadata(shoulder, metadata);
+	}
+
+	/**
+	 * Mints a new Archival Resource Key with typed Metadata on the provided
+	 * shoulder. The names need no validation.
+	 * 
+	 * @param shoulder shoulder on which the new Key will be minted
+	 * @param metadata metadata relevant to the Key
+	 * @return String with new Archival Resource Key
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	public String mintArkWithMetadata(String shoulder, ArkMetadata metadata) throws ClientProtocolException, IOException {
+		return mintArkWithValidMetadata(shoulder, metadata.asMap());
+	}
+
+	private String mintArkWithValidMetadata(String shoulder, Map<String, String> metadata)
+			throws ClientProtocolException, IOException {
+		String target = metadata.get(ArkInternalEnumeration._target.toString());
+		if (target == null || !target.contains("{pi.ark}")) {
+			return mintArk(shoulder, new ArkAnvlEntity(metadata, null));
+		}
+
+		// the target depends on the new Key, mint without target and set it afterwards
+		HashMap<String, String> mintMetadata = new HashMap<>(metadata);
+		mintMetadata.remove(ArkInternalEnumeration._target.toString());
+		String ARK = mintArk(shoulder, new ArkAnvlEntity(mintMetadata, null));
+		HashMap<String, String> targetMetadata = new HashMap<>();
+		targetMetadata.put(ArkInternalEnumeration._target.toString(), target);
+		boolean updated;
+		try {
+			updated = updateArkWithValidMetadata(ARK, targetMetadata);
+		} catch (IOException e) {
+			throw new ArkIncompleteMintException(ARK, "Unable to update " + ARK + ", no URL was registered: " + e.getMessage(), e);
+		}
+		if (!updated) {
+			throw new ArkIncompleteMintException(ARK, "Unable to update " + ARK + ", no URL was registered", null);
+		}
 		return ARK;
 	}
 
@@ -80,12 +207,29 @@ public class ArkRestClient {
 	 * @throws IOException
 	 */
 	public String mintArk(String shoulder) throws ClientProtocolException, IOException {
+		return mintArk(shoulder, null);
+	}
+
+	/**
+	 * Helper method that mints a new Archival Resource Key on the provided
+	 * shoulder and sends the ANVL body with the same request
+	 * 
+	 * @param shoulder shoulder on which the new Key will be minted
+	 * @param body     ANVL metadata or null
+	 * @return String with new Archival Resource Key
+	 */
+	private String mintArk(String shoulder, HttpEntity body) throws ClientProtocolException, IOException {
 		Request request = Request.Post(uri + "shoulder/ark:/" + nameAssigningAuthorityNumber + "/" + shoulder);
 		request = addHeaders(request);
+		if (body != null && body.getContentLength() > 0) {
+			request.addHeader("Content-Type", "text/plain; charset=UTF-8").body(body);
+		}
 
-		String response = request.execute().handleResponse(new ArkResponseHandler());
-
-		return response.replace("success: ", "");
+		ArkResponse response = execute("mint", request, false, this::toArkResponse);
+		if (!response.isSuccess()) {
+			throw new ClientProtocolException("Unexpected response of the ARK service: " + response.getStatus());
+		}
+		return response.getIdentifier();
 	}
 
 	// TODO Delete this test method
@@ -93,19 +237,79 @@ public class ArkRestClient {
 		Request request = Request.Delete(uri + "id/" + ARK);
 		request = addHeaders(request);
 
-		String response = request.addHeader("Content-Type", "text/plain; charset=UTF-8").execute()
-				.handleResponse(new ArkResponseHandler());
-		if (response.startsWith("success: ")) {
-			return true;
-		} else {
-			return false;
+		try {
+			return execute("delete", request.addHeader("Content-Type", "text/plain; charset=UTF-8"), true, this::toArkResponse)
+					.isSuccess();
+		} finally {
+			invalidate(ARK);
 		}
 	}
 
-	// TODO Delete this test method
+	/**
+	 * Reads the metadata of the given Key. If a metadata cache is set, fresh
+	 * entries are returned without a request and stale entries are revalidated
+	 * with a conditional request if the service sent an ETag or Last-Modified
+	 * header.
+	 * 
+	 * @param ARK Key of the entry
+	 * @return ANVL response of the service
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
 	public String getMetadata(String ARK) throws ClientProtocolException, IOException {
-		return Request.Get(uri + "id/" + ARK).addHeader("Accept", "text/plain; charset=UTF-8").execute()
-				.handleResponse(new ArkResponseHandler());
+		Request request = Request.Get(uri + "id/" + ARK).addHeader("Accept", "text/plain; charset=UTF-8");
+		if (metadataCache == null) {
+			return execute("get", request, true);
+		}
+		ArkMetadataCache.Entry cached = metadataCache.lookup(ARK);
+		if (cached != null && cached.isFresh()) {
+			return cached.getBody();
+		}
+		// a response to a request sent before an update of the ARK is not cached
+		long version = metadataCache.getVersion();
+		boolean revalidate = cached != null && metadataCache.isConditional() && cached.hasValidator();
+		if (revalidate) {
+			if (cached.getEtag() != null) {
+				request.addHeader(HttpHeaders.IF_NONE_MATCH, cached.getEtag());
+			}
+			if (cached.getLastModified() != null) {
+				request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+			}
+		}
+		return execute("get", request, true, response -> {
+			if (revalidate && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+				ArkMetrics.increment("ark.status.3xx");
+				EntityUtils.consume(response.getEntity());
+				metadataCache.revalidated(ARK, cached, version);
+				return cached.getBody();
+			}
+			String body = new ArkResponseHandler(maxResponseSize).handleResponse(response);
+			metadataCache.put(ARK, body, getHeader(response, HttpHeaders.ETAG), getHeader(response, HttpHeaders.LAST_MODIFIED),
+					version);
+			return body;
+		});
+	}
+
+	/**
+	 * Reads the metadata of the given Key. The response is parsed while it is
+	 * read from the connection.
+	 * 
+	 * @param ARK Key of the entry
+	 * @return names and unescaped values in the order of the response, the first
+	 *         entry is the success line
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	public LinkedHashMap<String, String> getMetadataMap(String ARK) throws ClientProtocolException, IOException {
+		if (metadataCache != null) {
+			return ArkAnvl.parse(getMetadata(ARK));
+		}
+		Request request = Request.Get(uri + "id/" + ARK).addHeader("Accept", "text/plain; charset=UTF-8");
+		return execute("get", request, true, response -> {
+			LinkedHashMap<String, String> metadata = new LinkedHashMap<>();
+			ArkResponseHandler.parse(response, maxResponseSize, metadata::put);
+			return metadata;
+		});
 	}
 
 	/**
@@ -121,67 +325,284 @@ public class ArkRestClient {
 	public boolean updateArk(String ARK, HashMap<String, String> metadata)
 			throws ClientProtocolException, IOException, IllegalArgumentException {
 		validateKeysOfMetadataHashMap(metadata);
-		
+		return updateArkWithValidMetadata(ARK, metadata);
+	}
+
+	/**
+	 * Updates the typed metadata of the given Key
+	 * 
+	 * @param ARK      Key of the entry that shall be updated
+	 * @param metadata metadata relevant to the Key
+	 * @return true if operation was successful
+	 * @throws ClientProtocolException
+	 * @throws IOException
+	 */
+	public boolean updateArk(String ARK, ArkMetadata metadata) throws ClientProtocolException, IOException {
+		return updateArkWithValidMetadata(ARK, metadata.asMap());
+	}
+
+	private boolean updateArkWithValidMetadata(String ARK, Map<String, String> metadata) throws ClientProtocolException, IOException {
 		Request request = Request.Post(uri + "id/" + ARK);
 		request = addHeaders(request); //
-		String response = request.addHeader("Content-Type", "text/plain; charset=UTF-8")
-				.bodyString(createMetadataBodyString(metadata, ARK),ContentType.create("text/plain","UTF-8")).execute()
-				.handleResponse(new ArkResponseHandler());
-		return response.startsWith("success:");
+		request.addHeader("Content-Type", "text/plain; charset=UTF-8").body(new ArkAnvlEntity(metadata, ARK));
+		try {
+			return execute("update", request, true, this::toArkResponse).isSuccess();
+		} finally {
+			invalidate(ARK);
+		}
 	}
 
 	/**
-	 * Helper method that validates the keys or names of the HashMap. It raises an
-	 * IllegalArgumentException if an unknown Key is detected
+	 * Asynchronous variant of {@link #mintArk(String)}. The request is executed by
+	 * the shared executor of the connection pool, the number of parallel requests
+	 * is limited by the asyncConcurrency connection setting.
 	 * 
-	 * @param metadata Hashmmap with the metadaty
-	 * @throws IllegalArgumentException if the HashMap contains Keys that are not in
-	 *                                  one of the Enumerations
+	 * @param shoulder shoulder on which the new Key will be minted
+	 * @return future with the new Archival Resource Key
 	 */
-	private void validateKeysOfMetadataHashMap(HashMap<String, String> metadata) throws IllegalArgumentException {
+	public CompletableFuture<String> mintArkAsync(String shoulder) {
+		return supplyAsync(() -> mintArk(shoulder));
+	}
 
-		outer_loop: for (String key : metadata.keySet()) {
-			if (key == null)
-				throw new IllegalArgumentException("Key in metadata HashMap was null");
-			boolean keyok = false;
-			for (ArkInternalEnumeration internal : ArkInternalEnumeration.values()) {
-				keyok = key.equals(internal.toString());
-				if (keyok)
-					continue outer_loop;
-			}
+	/**
+	 * Asynchronous variant of {@link #mintArkWithMetadata(String, HashMap)}
+	 * 
+	 * @param shoulder shoulder on which the new Key will be minted
+	 * @param metadata Hashmap with metadata relevant to the Key
+	 * @return future with the new Archival Resource Key
+	 */
+	public CompletableFuture<String> mintArkAsync(String shoulder, HashMap<String, String> metadata) {
+		return supplyAsync(() -> mintArkWithMetadata(shoulder, metadata));
+	}
 
-			for (ArkErcEnumeration erc : ArkErcEnumeration.values()) {
-				keyok = key.equals(erc.toString());
-				if (keyok)
-					continue outer_loop;
-			}
+	/**
+	 * Asynchronous variant of {@link #updateArk(String, HashMap)}
+	 * 
+	 * @param ARK      Key of the entry that shall be updated
+	 * @param metadata HashMap with Metadata
+	 * @return future that is true if the operation was successful
+	 */
+	public CompletableFuture<Boolean> updateArkAsync(String ARK, HashMap<String, String> metadata) {
+		return supplyAsync(() -> updateArk(ARK, metadata));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #mintArkWithMetadata(String, ArkMetadata)}
+	 * 
+	 * @param shoulder shoulder on which the new Key will be minted
+	 * @param metadata metadata relevant to the Key
+	 * @return future with the new Archival Resource Key
+	 */
+	public CompletableFuture<String> mintArkAsync(String shoulder, ArkMetadata metadata) {
+		return supplyAsync(() -> mintArkWithMetadata(shoulder, metadata));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #updateArk(String, ArkMetadata)}
+	 * 
+	 * @param ARK      Key of the entry that shall be updated
+	 * @param metadata metadata relevant to the Key
+	 * @return future that is true if the operation was successful
+	 */
+	public CompletableFuture<Boolean> updateArkAsync(String ARK, ArkMetadata metadata) {
+		return supplyAsync(() -> updateArk(ARK, metadata));
+	}
+
+	/**
+	 * Asynchronous variant of {@link #getMetadata(String)}
+	 * 
+	 * @param ARK Key of the entry
+	 * @return future with the ANVL response of the service
+	 */
+	public CompletableFuture<String> getMetadataAsync(String ARK) {
+		return supplyAsync(() -> getMetadata(ARK));
+	}
+
+	/**
+	 * Helper method that sends a request and returns the body of the successful
+	 * response
+	 */
+	private String execute(String operation, Request request, boolean idempotent) throws ClientProtocolException, IOException {
+		return execute(operation, request, idempotent, new ArkResponseHandler(maxResponseSize));
+	}
 
-			for (ArkDataCiteEnumeration datacite : ArkDataCiteEnumeration.values()) {
-				keyok = key.equals(datacite.toString());
-				if (keyok)
-					continue outer_loop;
+	/**
+	 * Helper method that parses the ANVL response while it is read from the
+	 * connection
+	 */
+	private ArkResponse toArkResponse(HttpResponse response) throws ClientProtocolException, IOException {
+		return ArkResponseHandler.toArkResponse(response, maxResponseSize);
+	}
+
+	/**
+	 * Helper method that sends a request through the circuit breaker and repeats
+	 * it according to the retry policy. Non idempotent requests are only repeated
+	 * after the service throttled them (429) or refused them (503), as a lost or
+	 * failed mint response must not lead to a second ARK. Idempotent requests are
+	 * also repeated after other temporary errors and connection problems. Every
+	 * attempt is recorded in the timer ark.request.&lt;operation&gt;.
+	 * 
+	 * @param operation  name of the operation for the metrics
+	 * @param request    request to send
+	 * @param idempotent true if the request may be sent more than once
+	 * @param handler    reads the response, has to throw the exceptions of
+	 *                   {@link ArkResponseHandler#checkStatus}
+	 * @return result of the handler
+	 * @throws ArkCircuitOpenException if the service is considered unavailable
+	 * @throws ArkRetryableException   if the service still failed after the last
+	 *                                 attempt
+	 * @throws ArkFatalException       if the service rejected the request
+	 * @throws IOException
+	 */
+	private <T> T execute(String operation, Request request, boolean idempotent, ResponseHandler<T> handler)
+			throws ClientProtocolException, IOException {
+		int attempt = 0;
+		while (true) {
+			attempt++;
+			if (rateLimiter != null) {
+				long waitStart = System.nanoTime();
+				rateLimiter.acquire();
+				ArkMetrics.recordSince("ark.rateLimit.wait", waitStart);
+			}
+			// the permit is taken first, so a trial request does not hold the circuit while it waits
+			if (!circuitBreaker.allowRequest()) {
+				ArkMetrics.increment("ark.circuitBreaker.rejected");
+				throw new ArkCircuitOpenException("ARK service " + uri + " is unavailable, request was not sent");
+			}
+			long delay;
+			long start = System.nanoTime();
+			ArkConnectionPool.PooledClient pooled = null;
+			try {
+				pooled = acquirePool();
+				T response = pooled.getExecutor().execute(request).handleResponse(handler);
+				ArkMetrics.recordSince("ark.request." + operation, start);
+				circuitBreaker.recordSuccess();
+				return response;
+			} catch (ArkRetryableException e) {
+				ArkMetrics.recordSince("ark.request." + operation, start);
+				if (e.getStatusCode() == 429) {
+					// throttled, the service itself is available
+					circuitBreaker.recordSuccess();
+				} else {
+					circuitBreaker.recordFailure();
+				}
+				// a mint may have been processed unless the service throttled or refused it
+				boolean rejected = e.getStatusCode() == 429 || e.getStatusCode() == 503;
+				delay = idempotent || rejected ? retryPolicy.getDelay(attempt, e.getRetryAfterMillis()) : -1;
+				if (delay < 0) {
+					throw e;
+				}
+			} catch (ClientProtocolException e) {
+				ArkMetrics.recordSince("ark.request." + operation, start);
+				circuitBreaker.recordSuccess();
+				throw e;
+			} catch (IOException e) {
+				ArkMetrics.recordSince("ark.request." + operation, start);
+				ArkMetrics.increment("ark.status.ioError");
+				circuitBreaker.recordFailure();
+				delay = idempotent ? retryPolicy.getDelay(attempt, -1) : -1;
+				if (delay < 0) {
+					throw e;
+				}
+			} finally {
+				circuitBreaker.endRequest();
+				if (pooled != null) {
+					pooled.release();
+				}
+			}
+			ArkMetrics.increment("ark.retries." + operation);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to repeat the request");
 			}
-			throw new IllegalArgumentException("Unknown key was used in metadata: " + key);
 		}
 	}
 
+	/**
+	 * Helper method that runs a blocking call on the shared executor. Checked
+	 * exceptions complete the future exceptionally.
+	 */
+	private <T> CompletableFuture<T> supplyAsync(ArkCall<T> call) {
+		ArkConnectionPool.PooledClient pooled = acquirePool();
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try {
+					return call.execute();
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, pooled.getAsyncExecutor()).whenComplete((result, error) -> pooled.release());
+		} catch (RuntimeException e) {
+			pooled.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Helper method that registers a request with the shared pool. If the pool
+	 * was replaced because the connection settings changed, the current one is
+	 * used from now on.
+	 */
+	private ArkConnectionPool.PooledClient acquirePool() {
+		ArkConnectionPool.PooledClient pooled = pool;
+		while (!pooled.acquire()) {
+			pooled = ArkConnectionPool.getCurrent(pooled);
+			pool = pooled;
+		}
+		return pooled;
+	}
+
+	private void invalidate(String ARK) {
+		if (metadataCache != null) {
+			metadataCache.invalidate(ARK);
+		}
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+
+	@FunctionalInterface
+	private interface ArkCall<T> {
+		T execute() throws IOException;
+	}
+
+	/**
+	 * Helper method that validates the keys or names of the HashMap. It raises an
+	 * IllegalArgumentException if an unknown Key is detected
+	 * 
+	 * @param metadata Hashmmap with the metadaty
+	 * @throws IllegalArgumentException if the HashMap contains Keys that are not in
+	 *                                  one of the Enumerations
+	 */
+	void validateKeysOfMetadataHashMap(HashMap<String, String> metadata) throws IllegalArgumentException {
+		ArkAnvl.validate(metadata);
+	}
+
 	/**
 	 * Helper method that creates the ANVL-String from a HashMap
 	 * 
 	 * @param metadata HashMap with names and values
+	 * @param ARK      Key that replaces {pi.ark} in the _target, can be null
 	 * @return ANVL-compliant Body string
 	 * @throws IllegalArgumentException
 	 */
-	private String createMetadataBodyString(HashMap<String, String> metadata, String ARK) throws IllegalArgumentException {
-		StringBuilder sb = new StringBuilder();
-		metadata.forEach((key, value) -> {
-		    if (ARK != null && key == ArkInternalEnumeration._target.toString())
-		        value = value.replace("{pi.ark}",ARK);
-			if (value == null)
-				throw new IllegalArgumentException("Value in metadata HashMap was null");
-			sb.append(key + ": " + escapeAnvl(value) + "\n");
-		});
-		return sb.toString();
+	String createMetadataBodyString(HashMap<String, String> metadata, String ARK) throws IllegalArgumentException {
+		return ArkAnvl.encode(metadata, ARK);
+	}
+
+	/**
+	 * Helper method that creates the ANVL-String from typed metadata
+	 * 
+	 * @param metadata metadata
+	 * @param ARK      Key that replaces {pi.ark} in the _target, can be null
+	 * @return ANVL-compliant Body string
+	 */
+	String createMetadataBodyString(ArkMetadata metadata, String ARK) {
+		return ArkAnvl.encode(metadata.asMap(), ARK);
 	}
 
 	/**
@@ -191,8 +612,8 @@ public class ArkRestClient {
 	 * @param element string value which may contain characters that must be escaped
 	 * @return escaped string
 	 */
-	private String escapeAnvl(String element) {
-		return element.replace("%", "%25").replace("\n", "%0A").replace("\r", "%0D").replace(":", "%3A");
+	String escapeAnvl(String element) {
+		return ArkAnvl.escape(element);
 	}
 
 	/**
@@ -0,0 +1,54 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+
+import lombok.Data;
+
+/**
+ * Decides if and when a failed request to the ARK service is sent again. The delay grows exponentially with every attempt and is randomised
+ * between half and all of it (equal jitter), a Retry-After header of the service is honoured.
+ */
+@Data
+public class ArkRetryPolicy {
+
+    /** number of attempts including the first one, 1 disables retries */
+    private int maxAttempts = 3;
+    /** delay in milliseconds before the second attempt */
+    private long initialDelay = 500;
+    /** upper bound of the delay in milliseconds */
+    private long maxDelay = 30000;
+
+    /**
+     * Reads the policy from the &lt;retry&gt; element of the given configuration block. Missing values keep their defaults.
+     *
+     * @param config configuration block of the plugin
+     * @return retry policy
+     */
+    public static ArkRetryPolicy fromConfiguration(HierarchicalConfiguration config) {
+        ArkRetryPolicy policy = new ArkRetryPolicy();
+        policy.setMaxAttempts(config.getInt("retry.maxAttempts", policy.getMaxAttempts()));
+        policy.setInitialDelay(config.getLong("retry.initialDelay", policy.getInitialDelay()));
+        policy.setMaxDelay(config.getLong("retry.maxDelay", policy.getMaxDelay()));
+        return policy;
+    }
+
+    /**
+     * @param attempt number of the attempt that just failed, starting with 1
+     * @param retryAfterMillis delay requested by the service or -1
+     * @return delay in milliseconds before the next attempt or -1 if the request should not be repeated
+     */
+    public long getDelay(int attempt, long retryAfterMillis) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+        if (retryAfterMillis >= 0) {
+            // the service told us when to come back, give up if this is too far away
+            return retryAfterMillis <= maxDelay ? retryAfterMillis : -1;
+        }
+        long exponential = initialDelay << Math.min(attempt - 1, 30);
+        long delay = Math.min(maxDelay, exponential < 0 ? maxDelay : exponential);
+        return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+    }
+}
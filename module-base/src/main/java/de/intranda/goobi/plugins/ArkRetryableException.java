@@ -0,0 +1,33 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * Transient error of the ARK service, e.g. 429 Too Many Requests or 503 Service Unavailable
+ */
+public class ArkRetryableException extends ArkServiceException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    /**
+     * @param statusCode http status code
+     * @param message error message
+     * @param retryAfterMillis delay requested by the Retry-After header or -1 if the header was missing
+     */
+    public ArkRetryableException(int statusCode, String message, long retryAfterMillis) {
+        super(statusCode, message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return delay requested by the service in milliseconds or -1 if the service did not send a Retry-After header
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    @Override
+    public boolean isRetryable() {
+        return true;
+    }
+}
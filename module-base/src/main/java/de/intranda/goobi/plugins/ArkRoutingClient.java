@@ -0,0 +1,309 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.ClientProtocolException;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Client for several ARK service accounts with the API of the {@link ArkRestClient}. New ARKs are distributed over the endpoints by their
+ * weight, existing ARKs are sent to the endpoints that own their NAAN and shoulder. If an endpoint is unavailable or answers with a temporary
+ * error, the next matching endpoint is used. All endpoints are checked in the background, unavailable ones are only used if no other endpoint
+ * is left.
+ */
+@Log4j2
+public class ArkRoutingClient extends ArkRestClient {
+
+    private static final Map<String, HealthCheck> healthChecks = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ark-health-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String mainShoulder;
+    private final List<Route> routes = new ArrayList<>();
+
+    /**
+     * @param main main account, used for ARKs that no endpoint owns
+     * @param settings connection settings of the main account
+     */
+    public ArkRoutingClient(ArkEndpoint main, ArkConnectionSettings settings) {
+        super(main.getUri(), main.getNaan(), main.getApiUser(), main.getApiPassword(), settings);
+        this.mainShoulder = main.getShoulder();
+    }
+
+    /**
+     * Adds an endpoint. The first endpoint should be the main account. The health check of the account uses the client and interval that were
+     * added last, so a changed configuration is used as soon as a client is created with it.
+     *
+     * @param endpoint endpoint
+     * @param client configured client of the endpoint
+     * @param healthCheckInterval seconds between two health checks of the endpoint
+     */
+    public void addEndpoint(ArkEndpoint endpoint, ArkRestClient client, int healthCheckInterval) {
+        HealthCheck healthCheck = healthChecks.compute(endpoint.getKey(), (k, check) -> {
+            if (check == null) {
+                check = new HealthCheck();
+            }
+            check.update(endpoint, client, Math.max(1, healthCheckInterval));
+            return check;
+        });
+        routes.add(new Route(endpoint, client, healthCheck));
+    }
+
+    /**
+     * @return names of the endpoints with their health
+     */
+    public Map<String, Boolean> getEndpointHealth() {
+        Map<String, Boolean> health = new LinkedHashMap<>();
+        for (Route route : routes) {
+            health.put(route.endpoint.getName(), route.isAvailable());
+        }
+        return health;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        for (Route route : routes) {
+            if (route.isAvailable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String mintArk(String shoulder) throws ClientProtocolException, IOException {
+        return route(getMintRoutes(shoulder), false, route -> route.client.mintArk(getShoulder(route, shoulder)));
+    }
+
+    @Override
+    public String mintArkWithMetadata(String shoulder, HashMap<String, String> metadata)
+            throws ClientProtocolException, IOException, IllegalArgumentException {
+        return route(getMintRoutes(shoulder), false, route -> route.client.mintArkWithMetadata(getShoulder(route, shoulder), metadata));
+    }
+
+    @Override
+    public String mintArkWithMetadata(String shoulder, ArkMetadata metadata) throws ClientProtocolException, IOException {
+        return route(getMintRoutes(shoulder), false, route -> route.client.mintArkWithMetadata(getShoulder(route, shoulder), metadata));
+    }
+
+    @Override
+    public boolean updateArk(String ARK, HashMap<String, String> metadata) throws ClientProtocolException, IOException, IllegalArgumentException {
+        return route(getRoutes(ARK), true, route -> route.client.updateArk(ARK, metadata));
+    }
+
+    @Override
+    public boolean updateArk(String ARK, ArkMetadata metadata) throws ClientProtocolException, IOException {
+        return route(getRoutes(ARK), true, route -> route.client.updateArk(ARK, metadata));
+    }
+
+    @Override
+    public boolean deleteArk(String ARK) throws ClientProtocolException, IOException {
+        return route(getRoutes(ARK), true, route -> route.client.deleteArk(ARK));
+    }
+
+    @Override
+    public String getMetadata(String ARK) throws ClientProtocolException, IOException {
+        return route(getRoutes(ARK), true, route -> route.client.getMetadata(ARK));
+    }
+
+    @Override
+    public LinkedHashMap<String, String> getMetadataMap(String ARK) throws ClientProtocolException, IOException {
+        return route(getRoutes(ARK), true, route -> route.client.getMetadataMap(ARK));
+    }
+
+    /**
+     * Sends the call to the first route and fails over to the next one if the endpoint is unavailable. Mints are only repeated on another
+     * endpoint if they were not sent because of an open circuit or the service throttled or refused them (429, 503), as a lost or failed
+     * response might belong to an ARK that was minted.
+     */
+    private <T> T route(List<Route> candidates, boolean idempotent, RoutedCall<T> call) throws ClientProtocolException, IOException {
+        if (candidates.isEmpty()) {
+            throw new ClientProtocolException("No ARK endpoint is configured");
+        }
+        IOException last = null;
+        for (Route route : candidates) {
+            try {
+                return call.execute(route);
+            } catch (ArkFatalException e) {
+                throw e;
+            } catch (ArkServiceException e) {
+                if (!idempotent && !isRejected(e)) {
+                    throw e;
+                }
+                last = e;
+            } catch (IOException e) {
+                if (!idempotent) {
+                    throw e;
+                }
+                last = e;
+            }
+            log.warn("ARK endpoint " + route.endpoint.getName() + " failed: " + last.getMessage());
+            ArkMetrics.increment("ark.routing.failover");
+        }
+        throw last;
+    }
+
+    /**
+     * @return true if the service did not process the request
+     */
+    private static boolean isRejected(ArkServiceException e) {
+        if (e instanceof ArkCircuitOpenException) {
+            return true;
+        }
+        return e instanceof ArkRetryableException
+                && (((ArkRetryableException) e).getStatusCode() == 429 || ((ArkRetryableException) e).getStatusCode() == 503);
+    }
+
+    /**
+     * Orders the endpoints for a new ARK. ARKs on the main shoulder are distributed by weight over all endpoints, other shoulders go to the
+     * endpoints with this shoulder.
+     */
+    private List<Route> getMintRoutes(String shoulder) {
+        List<Route> candidates = new ArrayList<>();
+        boolean distribute = shoulder == null || shoulder.equals(mainShoulder);
+        for (Route route : routes) {
+            if (distribute ? route.endpoint.getWeight() > 0 : shoulder.equals(route.endpoint.getShoulder())) {
+                candidates.add(route);
+            }
+        }
+        if (candidates.isEmpty() && !routes.isEmpty()) {
+            candidates.add(routes.get(0));
+        }
+        return orderByWeight(candidates);
+    }
+
+    /**
+     * @return shoulder of the endpoint if the ARK is distributed, otherwise the requested one
+     */
+    private String getShoulder(Route route, String requested) {
+        boolean distribute = requested == null || requested.equals(mainShoulder);
+        return distribute && route.endpoint.getShoulder() != null ? route.endpoint.getShoulder() : requested;
+    }
+
+    /**
+     * Orders the endpoints that own an ARK, the main account if no endpoint owns it
+     */
+    private List<Route> getRoutes(String ark) {
+        List<Route> candidates = new ArrayList<>();
+        for (Route route : routes) {
+            if (route.endpoint.owns(ark)) {
+                candidates.add(route);
+            }
+        }
+        if (candidates.isEmpty() && !routes.isEmpty()) {
+            candidates.add(routes.get(0));
+        }
+        return orderByWeight(candidates);
+    }
+
+    /**
+     * Weighted random order without repetition, available endpoints first
+     */
+    private static List<Route> orderByWeight(List<Route> candidates) {
+        List<Route> available = new ArrayList<>();
+        List<Route> unavailable = new ArrayList<>();
+        for (Route route : candidates) {
+            (route.isAvailable() ? available : unavailable).add(route);
+        }
+        List<Route> ordered = new ArrayList<>(candidates.size());
+        for (List<Route> group : List.of(available, unavailable)) {
+            while (!group.isEmpty()) {
+                int total = 0;
+                for (Route route : group) {
+                    total += Math.max(1, route.endpoint.getWeight());
+                }
+                int pick = ThreadLocalRandom.current().nextInt(total);
+                for (int i = 0; i < group.size(); i++) {
+                    pick -= Math.max(1, group.get(i).endpoint.getWeight());
+                    if (pick < 0) {
+                        ordered.add(group.remove(i));
+                        break;
+                    }
+                }
+            }
+        }
+        return ordered;
+    }
+
+    @FunctionalInterface
+    private interface RoutedCall<T> {
+        T execute(Route route) throws IOException;
+    }
+
+    private static class Route {
+        private final ArkEndpoint endpoint;
+        private final ArkRestClient client;
+        private final HealthCheck healthCheck;
+
+        private Route(ArkEndpoint endpoint, ArkRestClient client, HealthCheck healthCheck) {
+            this.endpoint = endpoint;
+            this.client = client;
+            this.healthCheck = healthCheck;
+        }
+
+        private boolean isAvailable() {
+            return healthCheck.healthy && client.getCircuitBreaker().getState() != ArkCircuitBreaker.State.OPEN;
+        }
+    }
+
+    /**
+     * Periodic check of an endpoint, shared by all clients of the account
+     */
+    private static class HealthCheck implements Runnable {
+        private volatile ArkEndpoint endpoint;
+        private volatile ArkRestClient client;
+        private int interval;
+        private ScheduledFuture<?> future;
+        private volatile boolean healthy = true;
+
+        /**
+         * Uses the latest client of the account. The check is rescheduled if the interval changed and runs right away if the credentials
+         * changed, as the result of the old ones is outdated.
+         */
+        private void update(ArkEndpoint newEndpoint, ArkRestClient newClient, int newInterval) {
+            boolean credentialsChanged = endpoint != null && !Objects.equals(endpoint.getApiPassword(), newEndpoint.getApiPassword());
+            endpoint = newEndpoint;
+            client = newClient;
+            if (future == null || interval != newInterval) {
+                if (future != null) {
+                    future.cancel(false);
+                }
+                interval = newInterval;
+                future = healthChecker.scheduleWithFixedDelay(this, credentialsChanged ? 0 : interval, interval, TimeUnit.SECONDS);
+            } else if (credentialsChanged) {
+                healthChecker.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            String name = endpoint.getName();
+            boolean available = client.isAvailable();
+            if (available != healthy) {
+                if (available) {
+                    log.info("ARK endpoint " + name + " is available again");
+                } else {
+                    log.warn("ARK endpoint " + name + " is unavailable");
+                }
+            }
+            healthy = available;
+        }
+    }
+}
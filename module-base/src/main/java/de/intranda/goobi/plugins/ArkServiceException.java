@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins;
+
+import org.apache.http.client.ClientProtocolException;
+
+/**
+ * Error response of the ARK service. Subclasses tell whether the request can be repeated later.
+ */
+public abstract class ArkServiceException extends ClientProtocolException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    protected ArkServiceException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return http status code of the response or 0 if no response was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true if the same request may succeed when it is sent again later
+     */
+    public abstract boolean isRetryable();
+}
@@ -0,0 +1,332 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.persistence.managers.MetadataManager;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Moves the ARKs of many processes to another status, e.g. to withdraw a collection. Only the status is sent to the service, all other
+ * metadata stays untouched. The processes are handled in ascending order in batches, the updates of a batch are sent in parallel over the
+ * shared client.
+ * <p>
+ * After every batch the last finished process is written to a checkpoint file. If the job is interrupted, the next run with the same query,
+ * status and reason continues after this process. The checkpoint file is removed when the job is complete.
+ */
+@Log4j2
+public class ArkStatusJob {
+
+    /**
+     * Status of an ARK. Reserved ARKs are not resolved and can be deleted, public ARKs are resolved, unavailable ARKs are resolved to a page
+     * with the reason. ARKs that were public once cannot be reserved again.
+     */
+    public enum Status {
+        RESERVED,
+        PUBLIC,
+        UNAVAILABLE;
+
+        /**
+         * @param value status name, case insensitive
+         * @return status
+         * @throws IllegalArgumentException if the value is no status
+         */
+        public static Status parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+
+        /**
+         * @param reason reason of an unavailable ARK, can be null
+         * @return value of the _status element
+         */
+        public String toValue(String reason) {
+            String value = name().toLowerCase(Locale.ROOT);
+            if (this == UNAVAILABLE && reason != null && !reason.isBlank()) {
+                return value + " | " + reason.trim();
+            }
+            return value;
+        }
+    }
+
+    private final ArkPluginConfiguration config;
+    private final ArkRestClient client;
+    private final int batchSize;
+
+    /**
+     * @param config plugin configuration, defines the metadata type of the ARKs
+     * @param client client for the ARK service
+     * @param batchSize number of processes whose ARKs are updated in parallel between two checkpoints
+     */
+    public ArkStatusJob(ArkPluginConfiguration config, ArkRestClient client, int batchSize) {
+        this.config = config;
+        this.client = client;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Creates the Goobi process filter for the processes of a project, a batch or a list of processes that have an ARK. All given criteria
+     * have to match.
+     *
+     * @param project title of the project, can be null
+     * @param batchId id of the batch, can be null
+     * @param processIds ids of the processes, can be empty
+     * @param filter additional process filter as SQL condition, can be null
+     * @return SQL condition
+     */
+    public String createQuery(String project, Integer batchId, List<Integer> processIds, String filter) {
+        StringBuilder query = new StringBuilder("prozesse.ProzesseID IN (SELECT processid FROM metadata WHERE name = '")
+                .append(config.getMetadataType().replace("'", "''"))
+                .append("')");
+        if (project != null && !project.isBlank()) {
+            query.append(" AND prozesse.ProjekteID IN (SELECT ProjekteID FROM projekte WHERE Titel = '")
+                    .append(project.replace("'", "''"))
+                    .append("')");
+        }
+        if (batchId != null) {
+            query.append(" AND prozesse.batchID = ").append(batchId);
+        }
+        if (processIds != null && !processIds.isEmpty()) {
+            query.append(" AND prozesse.ProzesseID IN (");
+            for (int i = 0; i < processIds.size(); i++) {
+                query.append(i == 0 ? "" : ",").append(processIds.get(i).intValue());
+            }
+            query.append(')');
+        }
+        if (filter != null && !filter.isBlank()) {
+            query.append(" AND (").append(filter).append(')');
+        }
+        return query.toString();
+    }
+
+    /**
+     * Changes the status of the ARKs of all processes that match the query
+     *
+     * @param query process filter created by {@link #createQuery(String, Integer, List, String)}
+     * @param status new status
+     * @param reason reason of the change, it is sent for unavailable ARKs and written to the journal of processes with errors
+     * @param checkpointFile file for the progress of the job
+     * @return counts of the changed ARKs
+     * @throws IOException if the checkpoint could not be read or written
+     */
+    public Summary run(String query, Status status, String reason, Path checkpointFile) throws IOException {
+        List<Integer> processIds = new ArrayList<>(ProcessManager.getIdsForFilter(query));
+        return run(processIds, query, status, reason, checkpointFile);
+    }
+
+    /**
+     * Changes the status of the ARKs of the given processes
+     *
+     * @param processIds ids of the processes
+     * @param query description of the processes, a checkpoint is only used by a run with the same query
+     * @param status new status
+     * @param reason reason of the change, can be null
+     * @param checkpointFile file for the progress of the job
+     * @return counts of the changed ARKs
+     * @throws IOException if the checkpoint could not be read or written
+     */
+    Summary run(List<Integer> processIds, String query, Status status, String reason, Path checkpointFile) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Integer> sorted = new ArrayList<>(processIds);
+        Collections.sort(sorted);
+        String value = status.toValue(reason);
+        ArkMetadata metadata = ArkMetadata.builder().set(ArkInternalEnumeration._status, value).build();
+
+        Summary summary = new Summary();
+        Properties checkpoint = readCheckpoint(checkpointFile, query, value);
+        if (checkpoint != null) {
+            summary.restore(checkpoint);
+            log.info("ARK status change to '" + value + "' continues after process " + summary.lastProcessId);
+        }
+        log.info("ARK status change of " + sorted.size() + " processes to '" + value + "' started");
+
+        int index = 0;
+        while (index < sorted.size() && sorted.get(index) <= summary.lastProcessId) {
+            index++;
+        }
+        while (index < sorted.size()) {
+            List<Integer> batch = sorted.subList(index, Math.min(index + batchSize, sorted.size()));
+            if (!changeBatch(batch, metadata, reason, summary)) {
+                // the service is unavailable, the batch is sent again on the next run
+                summary.interrupted = true;
+                break;
+            }
+            summary.lastProcessId = batch.get(batch.size() - 1);
+            index += batch.size();
+            writeCheckpoint(checkpointFile, query, value, summary);
+            log.debug("ARK status change: " + index + " of " + sorted.size() + " processes");
+        }
+        if (!summary.interrupted) {
+            Files.deleteIfExists(checkpointFile);
+        }
+        summary.durationMillis = System.currentTimeMillis() - start;
+        log.info("ARK status change " + (summary.interrupted ? "interrupted: " : "finished: ") + summary);
+        return summary;
+    }
+
+    /**
+     * Sends the status of all ARKs of the processes in parallel and waits for all answers
+     *
+     * @return false if the circuit breaker stopped the updates
+     */
+    private boolean changeBatch(List<Integer> processIds, ArkMetadata metadata, String reason, Summary summary) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (Integer processId : processIds) {
+            summary.processes.incrementAndGet();
+            for (String ark : getArks(processId)) {
+                futures.add(client.updateArkAsync(ark, metadata)
+                        .handle((successful, error) -> finish(processId, ark, Boolean.TRUE.equals(successful),
+                                error instanceof CompletionException ? error.getCause() : error, reason, summary)));
+            }
+        }
+        boolean complete = true;
+        for (CompletableFuture<Boolean> future : futures) {
+            complete &= future.join();
+        }
+        return complete;
+    }
+
+    /**
+     * @return false if the update has to be sent again later
+     */
+    private boolean finish(int processId, String ark, boolean successful, Throwable error, String reason, Summary summary) {
+        if (successful) {
+            ArkMetrics.increment("ark.status.changed");
+            summary.changed.incrementAndGet();
+            return true;
+        }
+        if (error instanceof ArkCircuitOpenException) {
+            return false;
+        }
+        String message = error == null ? "update was rejected" : error.getMessage();
+        if (error instanceof ArkFatalException) {
+            summary.rejected.incrementAndGet();
+        } else {
+            summary.errors.incrementAndGet();
+        }
+        log.warn("Status of ARK " + ark + " could not be changed: " + message);
+        ArkProcessLog.add(processId, LogType.ERROR, "ARK: " + ark + " status could not be changed"
+                + (reason == null || reason.isBlank() ? "" : " (" + reason + ")") + ": " + message);
+        return true;
+    }
+
+    /**
+     * @return ARKs of the process
+     */
+    List<String> getArks(int processId) {
+        List<String> arks = new ArrayList<>();
+        for (String ark : MetadataManager.getAllMetadataValues(processId, config.getMetadataType())) {
+            if (!ark.isBlank()) {
+                arks.add(ark.trim());
+            }
+        }
+        return arks;
+    }
+
+    /**
+     * @return checkpoint of an earlier run with the same query and status or null
+     */
+    private static Properties readCheckpoint(Path checkpointFile, String query, String value) throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return null;
+        }
+        Properties checkpoint = new Properties();
+        try (InputStream in = Files.newInputStream(checkpointFile)) {
+            checkpoint.load(in);
+        }
+        if (!query.equals(checkpoint.getProperty("query")) || !value.equals(checkpoint.getProperty("status"))) {
+            log.info("Checkpoint " + checkpointFile + " belongs to another status change and is ignored");
+            return null;
+        }
+        return checkpoint;
+    }
+
+    private static void writeCheckpoint(Path checkpointFile, String query, String value, Summary summary) throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("query", query);
+        checkpoint.setProperty("status", value);
+        summary.store(checkpoint);
+        Files.createDirectories(checkpointFile.toAbsolutePath().getParent());
+        Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            checkpoint.store(out, "ARK status change");
+        }
+        Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Counts of a status change, including the ones of earlier runs that were continued
+     */
+    public static class Summary {
+        private final AtomicInteger processes = new AtomicInteger();
+        private final AtomicInteger changed = new AtomicInteger();
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        private int lastProcessId = Integer.MIN_VALUE;
+        private boolean interrupted;
+        private long durationMillis;
+
+        public int getProcesses() {
+            return processes.get();
+        }
+
+        public int getChanged() {
+            return changed.get();
+        }
+
+        public int getRejected() {
+            return rejected.get();
+        }
+
+        public int getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return true if the service became unavailable, the next run continues with the remaining processes
+         */
+        public boolean isInterrupted() {
+            return interrupted;
+        }
+
+        public boolean isSuccessful() {
+            return !interrupted && rejected.get() == 0 && errors.get() == 0;
+        }
+
+        private void store(Properties checkpoint) {
+            checkpoint.setProperty("lastProcessId", String.valueOf(lastProcessId));
+            checkpoint.setProperty("processes", String.valueOf(getProcesses()));
+            checkpoint.setProperty("changed", String.valueOf(getChanged()));
+            checkpoint.setProperty("rejected", String.valueOf(getRejected()));
+            checkpoint.setProperty("errors", String.valueOf(getErrors()));
+        }
+
+        private void restore(Properties checkpoint) {
+            lastProcessId = Integer.parseInt(checkpoint.getProperty("lastProcessId", String.valueOf(Integer.MIN_VALUE)));
+            processes.set(Integer.parseInt(checkpoint.getProperty("processes", "0")));
+            changed.set(Integer.parseInt(checkpoint.getProperty("changed", "0")));
+            rejected.set(Integer.parseInt(checkpoint.getProperty("rejected", "0")));
+            errors.set(Integer.parseInt(checkpoint.getProperty("errors", "0")));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ARKs of %d processes changed in %d ms, %d rejected, %d errors", getChanged(), getProcesses(), durationMillis,
+                    getRejected(), getErrors());
+        }
+    }
+}
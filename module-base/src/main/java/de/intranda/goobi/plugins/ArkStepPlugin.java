@@ -1,7 +1,5 @@
 package de.intranda.goobi.plugins;
 
-import java.io.IOException;
-
 /**
  * This file is part of a plugin for Goobi - a Workflow tool for the support of mass digitization.
  *
@@ -21,9 +19,15 @@ import java.io.IOException;
  *
  */
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
+import java.util.List;
 
-import org.apache.commons.configuration.SubnodeConfiguration;
+import org.goobi.beans.Process;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginGuiType;
@@ -32,22 +36,9 @@ import org.goobi.production.enums.PluginType;
 import org.goobi.production.enums.StepReturnValue;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
-import de.sub.goobi.config.ConfigPlugins;
-import de.sub.goobi.helper.Helper;
-import de.sub.goobi.helper.VariableReplacer;
-import de.sub.goobi.helper.exceptions.SwapException;
 import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
-import ugh.dl.DocStruct;
-import ugh.dl.Fileformat;
-import ugh.dl.Metadata;
-import ugh.dl.MetadataType;
-import ugh.dl.Prefs;
-import ugh.exceptions.MetadataTypeNotAllowedException;
-import ugh.exceptions.PreferencesException;
-import ugh.exceptions.ReadException;
-import ugh.exceptions.WriteException;
 
 @PluginImplementation
 @Log4j2
@@ -59,44 +50,22 @@ public class ArkStepPlugin implements IStepPluginVersion2 {
     private Step step;
 
     private String returnPath;
-    private String metadataType;
-    private String uri;
-    private String naan;
-    private String apiUser;
-    private String apiPassword;
-    private String shoulder;
-    private String creator;
-    private String dctitle;
-    private String publisher;
-    private String publicationYear;
-    private String resourceType;
-    private String target;
+    private ArkPluginConfiguration config;
 
     @Override
     public void initialize(Step step, String returnPath) {
         this.returnPath = returnPath;
         this.step = step;
 
-        // read parameters from correct block in configuration file
-        SubnodeConfiguration myconfig = ConfigPlugins.getProjectAndStepConfig(title, step);
-
-        metadataType = myconfig.getString("metadataType", "ark");
-
-        // ArkRestClient configuration parameters
-        uri = myconfig.getString("uri", "http://example.com");
-        naan = myconfig.getString("naan", "1111111");
-        apiUser = myconfig.getString("apiUser", "Nutzer");
-        apiPassword = myconfig.getString("apiPassword", "Password");
-        shoulder = myconfig.getString("shoulder", "Password");
-
-        // datacite metadata
-        creator = myconfig.getString("metadataCreator");
-        dctitle = myconfig.getString("metadataTitle");
-        publisher = myconfig.getString("metadataPublisher");
-        publicationYear = myconfig.getString("metadataPublicationYear");
-        resourceType = myconfig.getString("metadataResourceType");
-
-        target = myconfig.getString("publicationUrl");
+        // read parameters from correct block in configuration file, the parsed block is cached until the file changes
+        config = ArkPluginConfiguration.getInstance(title, step);
+        ArkMetrics.useRegistry(config.getMetricsRegistry());
+        ArkProcessLog.configure(step.getProcessId(), config.isProcessLogBuffered(), config.getProcessLogInterval(),
+                config.isProcessLogSuppressInfo());
+        if (config.isJournalEnabled()) {
+            // on first use the registrations interrupted before the last shutdown are recovered
+            ArkMintJournal.getInstance(config);
+        }
 
         log.info("Ark step plugin initialized");
     }
@@ -139,95 +108,132 @@ public class ArkStepPlugin implements IStepPluginVersion2 {
     @Override
     public boolean execute() {
         PluginReturnValue ret = run();
-        return ret != PluginReturnValue.ERROR;
+        return ret == PluginReturnValue.FINISH;
     }
 
-    /**
-     * Returns true if the DocStruct-element allows to write Arks
-     * 
-     * @param ds
-     * @return
-     */
-    private boolean isAllowedArk(DocStruct ds, String arkType) {
-        for (MetadataType metadataType : ds.getType().getAllMetadataTypes()) {
-            if (metadataType.getName().equals(arkType)) {
-                return true;
-            }
+    @Override
+    public PluginReturnValue run() {
+        try {
+            return runStep();
+        } finally {
+            // all messages of the process are in the journal before the step returns its status
+            ArkProcessLog.flush(step.getProcessId());
         }
-        return false;
     }
 
-    @Override
-    public PluginReturnValue run() {
-        boolean successful = false;
-        boolean foundExistingArk = false;
+    private PluginReturnValue runStep() {
+        boolean successful;
+        boolean deferred;
+        Process process = step.getProzess();
 
-        try {
-            ArkRestClient arkClient = new ArkRestClient(uri, naan, apiUser, apiPassword);
-
-            // read mets file
-            Fileformat ff = step.getProzess().readMetadataFile();
-            Prefs prefs = step.getProzess().getRegelsatz().getPreferences();
-            DocStruct logical = ff.getDigitalDocument().getLogicalDocStruct();
-            VariableReplacer replacer = new VariableReplacer(ff.getDigitalDocument(), prefs, step.getProzess(), step);
-
-            // Create HashMap with datacite metadata
-            HashMap<String, String> mdata = new HashMap<>();
-            mdata.put(ArkInternalEnumeration._profile.toString(), "datacite");
-            mdata.put(ArkInternalEnumeration._target.toString(), replacer.replace(target));
-            mdata.put(ArkDataCiteEnumeration.CREATOR.toString(), replacer.replace(creator));
-            mdata.put(ArkDataCiteEnumeration.TITLE.toString(), replacer.replace(dctitle));
-            mdata.put(ArkDataCiteEnumeration.PUBLICATIONYEAR.toString(), replacer.replace(publicationYear));
-            mdata.put(ArkDataCiteEnumeration.PUBLISHER.toString(), replacer.replace(publisher));
-            mdata.put(ArkDataCiteEnumeration.RESOURCETYPE.toString(), resourceType);
-
-            if (logical.getType().isAnchor()) {
-                logical = logical.getAllChildren().get(0);
-            }
+        if (config.isReconciliationEnabled()) {
+            return reconcile();
+        }
 
-            // find existing ARKs
-            for (Metadata md : logical.getAllMetadata()) {
-                if (md.getType().getName().equals(metadataType)) {
-                    foundExistingArk = true;
-                    String existingArk = md.getValue().trim();
-                    successful = arkClient.updateArk(existingArk, mdata);
-                    if (!successful) {
-                        Helper.addMessageToProcessLog(step.getProcessId(), LogType.ERROR, "ARK: " + existingArk + " could not be updated!");
-                    } else {
-                        Helper.addMessageToProcessLog(step.getProcessId(), LogType.INFO, "ARK: " + existingArk + " was updated sucecssfully");
-                    }
-                }
-            }
+        if (config.isStatusChangeEnabled()) {
+            return changeStatus(process);
+        }
 
-            // if no ARKs found yet register a new one
-            if (!foundExistingArk) {
-                if (isAllowedArk(logical, metadataType)) {
-                    Metadata md = new Metadata(prefs.getMetadataTypeByName(metadataType));
-                    String myNewArk = arkClient.mintArkWithMetadata(shoulder, mdata);
-                    md.setValue(myNewArk);
-                    logical.addMetadata(md);
-                    Helper.addMessageToProcessLog(step.getProcessId(), LogType.INFO, "ARK: " + myNewArk + " was created successfully!");
-
-                    // save the mets file
-                    step.getProzess().writeMetadataFile(ff);
-                    successful = true;
-                } else {
-                    throw new MetadataTypeNotAllowedException(
-                            "This Metadataelement (" + metadataType + ") is not allowed for the TopStruct, please update the ruleset!");
-                }
-            }
+        String batchFilter = config.getBatchFilter();
+        if (config.isBatchMode() && (!config.getBatchProcesses().isEmpty() || batchFilter != null && !batchFilter.isBlank())) {
+            // configured processes instead of the process of the step
+            return registerSelection();
+        }
 
-        } catch (ReadException | PreferencesException | WriteException | IOException | SwapException | IllegalArgumentException
-                | MetadataTypeNotAllowedException e) {
-            log.error(e);
-            Helper.addMessageToProcessLog(step.getProcessId(), LogType.ERROR, e.getMessage());
+        if (config.isBatchMode() && process.getBatch() != null) {
+            // batch step: the first step of the batch registers all its processes at once
+            ArkRegistrationResult result = ArkBatchRegistrar.registerBatchStep(config, process.getBatch().getBatchId(), step);
+            successful = result.isSuccessful();
+            deferred = result.getOutcome() == ArkRegistrationResult.Outcome.DEFERRED;
+        } else {
+            ArkRegistrationResult result = new ArkProcessRegistrar(config, config.createClient()).register(process, step);
+            successful = result.isSuccessful();
+            deferred = result.getOutcome() == ArkRegistrationResult.Outcome.DEFERRED;
         }
 
         log.info("Ark step plugin executed");
-        Helper.addMessageToProcessLog(step.getProcessId(), LogType.INFO, "Ark step plugin executed");
+        ArkProcessLog.add(step.getProcessId(), LogType.INFO, "Ark step plugin executed");
+        if (deferred) {
+            // the ARK service is unavailable, park the step instead of marking it as failed
+            return PluginReturnValue.WAIT;
+        }
         if (!successful) {
             return PluginReturnValue.ERROR;
         }
         return PluginReturnValue.FINISH;
     }
+
+    /**
+     * Registers the ARKs of the configured processes instead of the ARK of the process, e.g. to work off a backlog
+     */
+    private PluginReturnValue registerSelection() {
+        ArkBatchResult result = new ArkBatchRegistrar(config, config.getBatchThreads()).registerSelection(config.getBatchProcesses(),
+                config.getBatchFilter(), step);
+        ArkProcessLog.add(step.getProcessId(), result.isSuccessful() ? LogType.INFO : LogType.ERROR, "ARK batch registration: " + result);
+        if (result.getCount(ArkRegistrationResult.Outcome.FAILED) == 0 && result.getCount(ArkRegistrationResult.Outcome.DEFERRED) > 0) {
+            // the ARK service is unavailable, park the step; the next run skips the processes whose metadata did not change
+            return PluginReturnValue.WAIT;
+        }
+        return result.isSuccessful() ? PluginReturnValue.FINISH : PluginReturnValue.ERROR;
+    }
+
+    /**
+     * Changes the status of the ARKs of the configured processes instead of registering the ARK of the process. Without a query the ARKs of the
+     * process are changed, in batch mode the ARKs of its batch.
+     */
+    private PluginReturnValue changeStatus(Process process) {
+        ArkStatusJob job = new ArkStatusJob(config, config.createClient(), config.getStatusChangeBatchSize());
+        String project = config.getStatusChangeProject();
+        Integer batchId = config.getStatusChangeBatch();
+        List<Integer> processIds = config.getStatusChangeProcesses();
+        String filter = config.getStatusChangeFilter();
+        if ((project == null || project.isBlank()) && batchId == null && processIds.isEmpty() && (filter == null || filter.isBlank())) {
+            if (config.isBatchMode() && process.getBatch() != null) {
+                batchId = process.getBatch().getBatchId();
+            } else {
+                processIds = List.of(step.getProcessId());
+            }
+        }
+        Path checkpointFile = Paths.get(config.getStorageFolder(), "status_" + step.getProcessId() + ".properties");
+        try {
+            ArkStatusJob.Status status = ArkStatusJob.Status.parse(config.getStatusChangeTarget());
+            ArkStatusJob.Summary summary = job.run(job.createQuery(project, batchId, processIds, filter), status,
+                    config.getStatusChangeReason(), checkpointFile);
+            ArkProcessLog.add(step.getProcessId(), LogType.INFO, "ARK status change to " + status.toValue(config.getStatusChangeReason())
+                    + ": " + summary);
+            if (summary.isInterrupted()) {
+                // the ARK service is unavailable, the next run continues after the last checkpoint
+                return PluginReturnValue.WAIT;
+            }
+            return summary.isSuccessful() ? PluginReturnValue.FINISH : PluginReturnValue.ERROR;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("ARK status change failed", e);
+            ArkProcessLog.add(step.getProcessId(), LogType.ERROR, "ARK status change failed: " + e.getMessage());
+            return PluginReturnValue.ERROR;
+        }
+    }
+
+    /**
+     * Compares the metadata of all registered ARKs with the METS files instead of registering the ARK of the process
+     */
+    private PluginReturnValue reconcile() {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        Path reportFile = Paths.get(config.getStorageFolder(), "reconciliation_" + timestamp + ".csv");
+        String dumpFile = config.getReconciliationDumpFile();
+        try {
+            ArkReconciliationJob.Summary summary = new ArkReconciliationJob(config, config.createClient(), config.getReconciliationThreads())
+                    .run(config.getReconciliationFilter(), dumpFile == null || dumpFile.isBlank() ? null : Paths.get(dumpFile), reportFile,
+                            config.isReconciliationEnqueueUpdates());
+            ArkProcessLog.add(step.getProcessId(), LogType.INFO, "ARK reconciliation: " + summary + ", report: " + reportFile);
+            if (summary.isInterrupted()) {
+                // the ARK service is unavailable, park the step so the reconciliation runs again later
+                return PluginReturnValue.WAIT;
+            }
+            return summary.isSuccessful() ? PluginReturnValue.FINISH : PluginReturnValue.ERROR;
+        } catch (IOException e) {
+            log.error("ARK reconciliation failed", e);
+            ArkProcessLog.add(step.getProcessId(), LogType.ERROR, "ARK reconciliation failed: " + e.getMessage());
+            return PluginReturnValue.ERROR;
+        }
+    }
 }
@@ -0,0 +1,160 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.cli.helper.StringPair;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.VariableReplacer;
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.MetadataManager;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DocStructType;
+import ugh.dl.MetadataType;
+import ugh.dl.Prefs;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+import ugh.exceptions.WriteException;
+
+/**
+ * Reads only the logical top element of the METS file with StAX. The {meta.NAME} variables are resolved from this element or, for metadata
+ * a volume does not have, from its anchor. All other variables are passed to the VariableReplacer without a digital document. Use
+ * {@link ArkMetadataTemplates#isStreamingSupported()} to check if the configured values can be resolved this way. New ARKs are inserted into
+ * the file without parsing it completely.
+ */
+@Log4j2
+public class ArkStreamingDocument implements ArkMetsDocument {
+
+    private static final Pattern META_VARIABLE = Pattern.compile("\\{(metas?)\\.([^}]+)\\}");
+
+    private final Process process;
+    private final Step step;
+    private final String metadataType;
+    private final Prefs prefs;
+    private final ArkMetsFile metsFile;
+    private VariableReplacer replacer;
+
+    private ArkStreamingDocument(Process process, Step step, String metadataType, Prefs prefs, ArkMetsFile metsFile) {
+        this.process = process;
+        this.step = step;
+        this.metadataType = metadataType;
+        this.prefs = prefs;
+        this.metsFile = metsFile;
+    }
+
+    /**
+     * Opens the METS file of the process
+     *
+     * @param process process
+     * @param step step that triggered the registration, can be null
+     * @param metadataType name of the ARK metadata type
+     * @return document or null if the logical element could not be found with the streaming reader
+     */
+    public static ArkStreamingDocument open(Process process, Step step, String metadataType) throws IOException, SwapException {
+        Prefs prefs = process.getRegelsatz().getPreferences();
+        ArkMetsFile metsFile = ArkMetsFile.read(Paths.get(process.getMetadataFilePath()), type -> {
+            DocStructType dst = prefs.getDocStrctTypeByName(type);
+            return dst != null && dst.isAnchor();
+        });
+        if (metsFile == null || prefs.getDocStrctTypeByName(metsFile.getDocStructType()) == null) {
+            return null;
+        }
+        return new ArkStreamingDocument(process, step, metadataType, prefs, metsFile);
+    }
+
+    @Override
+    public String replace(String template) {
+        if (template == null) {
+            return null;
+        }
+        Matcher matcher = META_VARIABLE.matcher(template);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String value = metsFile.getFirstValue(matcher.group(2));
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(value == null ? "" : value));
+        }
+        matcher.appendTail(sb);
+        if (sb.indexOf("{") < 0) {
+            return sb.toString();
+        }
+        if (replacer == null) {
+            replacer = new VariableReplacer(null, prefs, process, step);
+        }
+        return replacer.replace(sb.toString());
+    }
+
+    @Override
+    public Map<String, String> getFirstValues(Set<String> names) {
+        Map<String, String> values = new HashMap<>();
+        for (String name : names) {
+            String value = metsFile.getFirstValue(name);
+            if (value != null) {
+                values.put(name, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public List<String> getExistingArks() {
+        List<String> arks = new ArrayList<>();
+        for (String value : metsFile.getValues(metadataType)) {
+            arks.add(value.trim());
+        }
+        return arks;
+    }
+
+    @Override
+    public String getElementPath() {
+        return metsFile.isAnchorChild() ? "0" : "";
+    }
+
+    @Override
+    public boolean isArkAllowed() {
+        DocStructType type = prefs.getDocStrctTypeByName(metsFile.getDocStructType());
+        for (MetadataType mdt : type.getAllMetadataTypes()) {
+            if (mdt.getName().equals(metadataType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void addArkAndSave(String ark) throws IOException, SwapException, ReadException, PreferencesException, WriteException,
+            MetadataTypeNotAllowedException {
+        if (!metsFile.addMetadata(metadataType, ark, ConfigurationHelper.getInstance().getNumberOfMetaBackups())) {
+            // no place to insert the metadata found, use the complete METS file instead
+            log.debug("Could not insert ARK into " + process.getMetadataFilePath() + " with the streaming writer");
+            new ArkUghDocument(process, step, metadataType).addArkAndSave(ark);
+            return;
+        }
+        addToMetadataTable(ark);
+    }
+
+    /**
+     * Adds the ARK to the metadata table of Goobi, which is updated by Process.writeMetadataFile when the complete METS file is written
+     */
+    private void addToMetadataTable(String ark) {
+        Map<String, List<String>> metadata = new HashMap<>();
+        for (StringPair pair : MetadataManager.getMetadata(process.getId())) {
+            metadata.computeIfAbsent(pair.getOne(), k -> new ArrayList<>()).add(pair.getTwo());
+        }
+        List<String> values = metadata.computeIfAbsent(metadataType, k -> new ArrayList<>());
+        if (!values.contains(ark)) {
+            values.add(ark);
+            MetadataManager.updateMetadata(process.getId(), metadata);
+        }
+    }
+}
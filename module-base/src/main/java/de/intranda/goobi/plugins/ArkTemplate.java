@@ -0,0 +1,123 @@
+package de.intranda.goobi.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A configured value that is parsed once. Variables of the form {meta.NAME} are filled from the metadata of the logical element or, if a
+ * volume does not have the metadata, of its anchor. All other variables are passed to the VariableReplacer of the document afterwards. The
+ * placeholder {pi.ark} is kept for the client.
+ */
+public class ArkTemplate {
+
+    private static final String META_PREFIX = "meta.";
+    private static final String ARK_PLACEHOLDER = "pi.ark";
+
+    private final String source;
+    // literal text or metadata names, every odd entry is a metadata name
+    private final List<String> parts = new ArrayList<>();
+    private final Set<String> metadataNames = new LinkedHashSet<>();
+    private boolean otherVariables;
+    private boolean streamingSupported = true;
+
+    private ArkTemplate(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @param source value from the configuration file, can be null
+     * @return compiled template or null if the value is null
+     */
+    public static ArkTemplate compile(String source) {
+        if (source == null) {
+            return null;
+        }
+        ArkTemplate template = new ArkTemplate(source);
+        template.parse();
+        return template;
+    }
+
+    private void parse() {
+        StringBuilder literal = new StringBuilder();
+        int index = 0;
+        while (index < source.length()) {
+            int open = source.indexOf('{', index);
+            int close = open < 0 ? -1 : source.indexOf('}', open);
+            if (close < 0) {
+                literal.append(source, index, source.length());
+                break;
+            }
+            literal.append(source, index, open);
+            String variable = source.substring(open + 1, close);
+            if (variable.startsWith(META_PREFIX) && variable.indexOf('.', META_PREFIX.length()) < 0) {
+                parts.add(literal.toString());
+                literal.setLength(0);
+                String name = variable.substring(META_PREFIX.length());
+                parts.add(name);
+                metadataNames.add(name);
+            } else {
+                literal.append(source, open, close + 1);
+                if (!ARK_PLACEHOLDER.equals(variable)) {
+                    otherVariables = true;
+                    if (variable.startsWith("meta") || variable.startsWith("metas.")) {
+                        // {meta.topstruct.NAME}, {metas.NAME} and similar need the complete METS file
+                        streamingSupported = false;
+                    }
+                }
+            }
+            index = close + 1;
+        }
+        parts.add(literal.toString());
+    }
+
+    /**
+     * @return names of the metadata used by {meta.NAME} variables
+     */
+    public Set<String> getMetadataNames() {
+        return Collections.unmodifiableSet(metadataNames);
+    }
+
+    /**
+     * @return true if the template can be filled from the logical element alone
+     */
+    public boolean isStreamingSupported() {
+        return streamingSupported;
+    }
+
+    /**
+     * Fills the template
+     *
+     * @param metadata first values of the metadata of the logical element
+     * @param document document whose VariableReplacer resolves the remaining variables
+     * @return value
+     */
+    public String apply(Map<String, String> metadata, ArkMetsDocument document) {
+        String value;
+        if (parts.size() == 1) {
+            value = parts.get(0);
+        } else {
+            StringBuilder sb = new StringBuilder(source.length() + 32);
+            for (int i = 0; i < parts.size(); i++) {
+                if (i % 2 == 0) {
+                    sb.append(parts.get(i));
+                } else {
+                    String metadataValue = metadata.get(parts.get(i));
+                    if (metadataValue != null) {
+                        sb.append(metadataValue);
+                    }
+                }
+            }
+            value = sb.toString();
+        }
+        return otherVariables ? document.replace(value) : value;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -0,0 +1,65 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Duration statistics of one operation. Count, total and maximum cover all recorded durations, the percentiles are calculated from the last
+ * {@value #SAMPLES} durations.
+ */
+public class ArkTimer {
+
+    static final int SAMPLES = 1024;
+
+    private final long[] samples = new long[SAMPLES];
+    private int next;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * @param durationNanos duration in nanoseconds
+     */
+    public synchronized void record(long durationNanos) {
+        samples[next] = durationNanos;
+        next = (next + 1) % SAMPLES;
+        count++;
+        totalNanos += durationNanos;
+        maxNanos = Math.max(maxNanos, durationNanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean duration in milliseconds
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : totalNanos / (double) count / 1_000_000d;
+    }
+
+    /**
+     * @return maximum duration in milliseconds
+     */
+    public synchronized double getMax() {
+        return maxNanos / 1_000_000d;
+    }
+
+    /**
+     * @param percentile value between 0 and 1
+     * @return duration in milliseconds below which the given fraction of the recent durations lies
+     */
+    public double getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            int size = (int) Math.min(count, SAMPLES);
+            if (size == 0) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(samples, size);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1_000_000d;
+    }
+}
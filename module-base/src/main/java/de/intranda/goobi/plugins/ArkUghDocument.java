@@ -0,0 +1,266 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.sub.goobi.helper.VariableReplacer;
+import de.sub.goobi.helper.exceptions.SwapException;
+import ugh.dl.DocStruct;
+import ugh.dl.Fileformat;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataType;
+import ugh.dl.Person;
+import ugh.dl.Prefs;
+import ugh.exceptions.MetadataTypeNotAllowedException;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+import ugh.exceptions.WriteException;
+
+/**
+ * Reads the complete METS file with UGH. All variables of the VariableReplacer are supported.
+ */
+public class ArkUghDocument implements ArkMetsDocument {
+
+    private final Process process;
+    private final String metadataType;
+    private final Fileformat ff;
+    private final Prefs prefs;
+    private final DocStruct top;
+    private final Element logical;
+    private final VariableReplacer replacer;
+
+    public ArkUghDocument(Process process, Step step, String metadataType)
+            throws ReadException, PreferencesException, IOException, SwapException {
+        this.process = process;
+        this.metadataType = metadataType;
+
+        // read mets file
+        ff = process.readMetadataFile();
+        prefs = process.getRegelsatz().getPreferences();
+        top = ff.getDigitalDocument().getLogicalDocStruct();
+        replacer = new VariableReplacer(ff.getDigitalDocument(), prefs, process, step);
+
+        if (top.getType().isAnchor()) {
+            logical = new Element(top.getAllChildren().get(0), top, "0");
+        } else {
+            logical = new Element(top, null, "");
+        }
+    }
+
+    @Override
+    public String replace(String template) {
+        return replacer.replace(template);
+    }
+
+    @Override
+    public Map<String, String> getFirstValues(Set<String> names) {
+        return logical.getFirstValues(names);
+    }
+
+    @Override
+    public List<String> getExistingArks() {
+        return logical.getExistingArks();
+    }
+
+    @Override
+    public String getElementPath() {
+        return logical.getElementPath();
+    }
+
+    @Override
+    public boolean isArkAllowed() {
+        return logical.isArkAllowed();
+    }
+
+    @Override
+    public void addArkAndSave(String ark) throws IOException, SwapException, PreferencesException, WriteException, MetadataTypeNotAllowedException {
+        logical.addArk(ark);
+
+        // save the mets file
+        save();
+    }
+
+    /**
+     * Walks the logical tree once and returns the elements that have an ARK or allow one: the anchor, all volumes and, if requested, all
+     * elements below them. Parents come before their children.
+     *
+     * @param includeChildren true to include the elements below the top element or the volumes
+     * @return elements in the order of the logical tree
+     */
+    public List<Element> getElements(boolean includeChildren) {
+        List<Element> elements = new ArrayList<>();
+        if (top.getType().isAnchor()) {
+            addElement(top, null, "", elements);
+            if (top.getAllChildren() != null) {
+                int index = 0;
+                for (DocStruct volume : top.getAllChildren()) {
+                    collect(volume, top, String.valueOf(index++), includeChildren, elements);
+                }
+            }
+        } else {
+            collect(top, null, "", includeChildren, elements);
+        }
+        return elements;
+    }
+
+    /**
+     * Saves the METS file with all ARKs added by {@link Element#addArk(String)}
+     */
+    public void save() throws IOException, SwapException, PreferencesException, WriteException {
+        process.writeMetadataFile(ff);
+    }
+
+    private void collect(DocStruct ds, DocStruct anchor, String path, boolean includeChildren, List<Element> elements) {
+        addElement(ds, anchor, path, elements);
+        if (includeChildren && ds.getAllChildren() != null) {
+            int index = 0;
+            for (DocStruct child : ds.getAllChildren()) {
+                collect(child, null, (path.isEmpty() ? "" : path + ".") + index++, true, elements);
+            }
+        }
+    }
+
+    private void addElement(DocStruct ds, DocStruct anchor, String path, List<Element> elements) {
+        Element element = ds == logical.ds ? logical : new Element(ds, anchor, path);
+        if (element.isArkAllowed() || !element.getExistingArks().isEmpty()) {
+            elements.add(element);
+        }
+    }
+
+    /**
+     * Collects the first value of each metadata of an element. Like the VariableReplacer, metadata that a volume does not have is taken from
+     * its anchor.
+     *
+     * @param ds logical element
+     * @param anchor anchor of the element or null
+     * @param names names of the metadata
+     * @return first values by name, missing metadata has no entry
+     */
+    static Map<String, String> getFirstValues(DocStruct ds, DocStruct anchor, Set<String> names) {
+        Map<String, String> values = new HashMap<>();
+        if (names.isEmpty()) {
+            return values;
+        }
+        addFirstValues(ds, names, values);
+        if (anchor != null && values.size() < names.size()) {
+            addFirstValues(anchor, names, values);
+        }
+        return values;
+    }
+
+    private static void addFirstValues(DocStruct ds, Set<String> names, Map<String, String> values) {
+        if (ds.getAllMetadata() != null) {
+            for (Metadata md : ds.getAllMetadata()) {
+                String name = md.getType().getName();
+                if (names.contains(name) && !values.containsKey(name)) {
+                    values.put(name, md.getValue());
+                }
+            }
+        }
+        if (ds.getAllPersons() != null) {
+            for (Person person : ds.getAllPersons()) {
+                String name = person.getType().getName();
+                if (names.contains(name) && !values.containsKey(name)) {
+                    values.put(name, getDisplayName(person));
+                }
+            }
+        }
+    }
+
+    private static String getDisplayName(Person person) {
+        if (person.getDisplayname() != null && !person.getDisplayname().isBlank()) {
+            return person.getDisplayname();
+        }
+        if (person.getLastname() != null && person.getFirstname() != null) {
+            return person.getLastname() + ", " + person.getFirstname();
+        }
+        return person.getLastname() != null ? person.getLastname() : person.getFirstname();
+    }
+
+    /**
+     * A single logical element of the document. Variables other than {meta.NAME} are resolved by the VariableReplacer of the document.
+     */
+    public class Element implements ArkMetsDocument {
+
+        private final DocStruct ds;
+        // anchor whose metadata is used if the element does not have it, null for all other elements
+        private final DocStruct anchor;
+        private final String path;
+
+        private Element(DocStruct ds, DocStruct anchor, String path) {
+            this.ds = ds;
+            this.anchor = anchor;
+            this.path = path;
+        }
+
+        /**
+         * @return structure type of the element
+         */
+        public String getType() {
+            return ds.getType().getName();
+        }
+
+        @Override
+        public String replace(String template) {
+            return replacer.replace(template);
+        }
+
+        @Override
+        public Map<String, String> getFirstValues(Set<String> names) {
+            return ArkUghDocument.getFirstValues(ds, anchor, names);
+        }
+
+        @Override
+        public List<String> getExistingArks() {
+            List<String> arks = new ArrayList<>();
+            if (ds.getAllMetadata() != null) {
+                for (Metadata md : ds.getAllMetadata()) {
+                    if (md.getType().getName().equals(metadataType)) {
+                        arks.add(md.getValue().trim());
+                    }
+                }
+            }
+            return arks;
+        }
+
+        @Override
+        public String getElementPath() {
+            return path;
+        }
+
+        @Override
+        public boolean isArkAllowed() {
+            for (MetadataType type : ds.getType().getAllMetadataTypes()) {
+                if (type.getName().equals(metadataType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Adds a new ARK to the element without saving the METS file
+         *
+         * @param ark new ARK
+         */
+        public void addArk(String ark) throws MetadataTypeNotAllowedException {
+            Metadata md = new Metadata(prefs.getMetadataTypeByName(metadataType));
+            md.setValue(ark);
+            ds.addMetadata(md);
+        }
+
+        @Override
+        public void addArkAndSave(String ark) throws IOException, SwapException, PreferencesException, WriteException,
+                MetadataTypeNotAllowedException {
+            addArk(ark);
+            save();
+        }
+    }
+}
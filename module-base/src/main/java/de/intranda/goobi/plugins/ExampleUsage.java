@@ -10,7 +10,8 @@ public class ExampleUsage {
 	
 	public void exampleCall() {
 		//create client with URI, NAN, username, password
-		ArkRestClient client = new ArkRestClient("https://www.arketype.ch/", "99999", "apitest5", "vvHSbmDqiJqpKdcMJOA1");
+		//use your own test account or the FakeArkServer of the tests
+		ArkRestClient client = new ArkRestClient("https://www.arketype.ch/", "99999", "apiUser", "apiPassword");
 		
 		// generate HashMap with metadata
 		// don't create entries with null as value or key ->IllegalArguementException will be raised
@@ -28,7 +29,7 @@ public class ExampleUsage {
 		String newArk;
 		
 		try {
-			//fk3 is the shoulder of the apitest5 user
+			//fk3 is the shoulder of the test user
 			newArk = client.mintArkWithMetadata("fk3", metadata);
 			
 			//or we could create Helper Methods like this
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ArkAnvlTest {
+
+    @Test
+    public void testEscape() {
+        String plain = "Nothing to escape";
+        assertSame(plain, ArkAnvl.escape(plain));
+        assertEquals("a%3Ab%25c%0Ad%0De", ArkAnvl.escape("a:b%c\nd\re"));
+    }
+
+    @Test
+    public void testEntityMatchesEncodedString() throws Exception {
+        HashMap<String, String> metadata = new HashMap<>();
+        metadata.put("_target", "https://example.org/{pi.ark}");
+        metadata.put("datacite.title", "\u00dcmlaut: \ud83d\udcda 100%\nline");
+        metadata.put("datacite.creator", "Doe, Jane");
+
+        String body = ArkAnvl.encode(metadata, "ark:/99999/fk4x");
+        assertTrue(body.contains("_target: https%3A//example.org/ark%3A/99999/fk4x\n"));
+
+        ArkAnvlEntity entity = new ArkAnvlEntity(metadata, "ark:/99999/fk4x");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        byte[] expected = body.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, entity.getContentLength());
+        assertEquals(body, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownKey() {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("datacite.unknown", "value");
+        ArkAnvl.validate(metadata);
+    }
+
+    @Test
+    public void testParse() {
+        Map<String, String> metadata = ArkAnvl.parse("success: ark:/99999/fk4x\r\n# comment\r\ndatacite.title: a%3Ab%25\r\n  continued\r\n"
+                + "_status: public");
+        assertEquals("ark:/99999/fk4x", metadata.get("success"));
+        assertEquals("a:b% continued", metadata.get("datacite.title"));
+        assertEquals("public", metadata.get("_status"));
+        assertEquals(3, metadata.size());
+    }
+}
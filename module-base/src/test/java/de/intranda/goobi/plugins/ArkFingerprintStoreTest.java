@@ -0,0 +1,49 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArkFingerprintStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoresOfTheSameFileAreMerged() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ark_fingerprints.properties");
+        // the step and the outbox dispatcher loaded the file before either of them stored a fingerprint
+        ArkFingerprintStore step = ArkFingerprintStore.load(file);
+        ArkFingerprintStore dispatcher = ArkFingerprintStore.load(file);
+
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            ArkFingerprintStore store = t == 0 ? step : dispatcher;
+            String prefix = "ark:/99999/fk" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        store.store(prefix + i, "datacite.title: Volume " + i);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        ArkFingerprintStore reloaded = ArkFingerprintStore.load(file);
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < 50; i++) {
+                assertTrue(reloaded.isUnchanged("ark:/99999/fk" + t + i, "datacite.title: Volume " + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArkIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLookupAfterReopen() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("index.log");
+        ArkIndex index = ArkIndex.open(path);
+        index.put("ark:/99999/fk3a", 1, "", "https://example.com/1", "abc");
+        index.put("ark:/99999/fk3b", 2, "0", "https://example.com/2", null);
+        index.put("ark:/99999/fk3c", 2, "0.1", null, null);
+        // the target changed
+        index.put("ark:/99999/fk3a", 1, "", "https://example.com/one", "def");
+
+        ArkIndex reopened = ArkIndex.open(path);
+        assertEquals(3, reopened.size());
+        assertEquals("https://example.com/one", reopened.get("ark:/99999/fk3a").getTarget());
+        assertEquals("def", reopened.get("ark:/99999/fk3a").getFingerprint());
+        assertEquals(1, reopened.getByProcess(1).size());
+        assertEquals(2, reopened.getByProcess(2).size());
+        assertTrue(reopened.getByProcess(3).isEmpty());
+        // compacted on open
+        assertEquals(3, Files.readAllLines(path, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testFindUnsavedArk() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("index.log");
+        ArkIndex index = ArkIndex.open(path);
+        index.put("ark:/99999/fk3a", 1, "0", "https://example.com/1", "abc");
+
+        assertEquals("ark:/99999/fk3a", index.findUnsavedArk(1, "0", Collections.emptyList()));
+        assertNull(index.findUnsavedArk(1, "0", Arrays.asList("ark:/99999/fk3a")));
+        assertNull(index.findUnsavedArk(1, "", Collections.emptyList()));
+        assertNull(index.findUnsavedArk(2, "0", Collections.emptyList()));
+    }
+
+    @Test
+    public void testTornLineIsSkipped() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("index.log");
+        ArkIndex index = ArkIndex.open(path);
+        index.put("ark:/99999/fk3a", 1, "", "https://example.com/1", "abc");
+        Files.write(path, "A\tark:/99999/fk3b\t2".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        ArkIndex reopened = ArkIndex.open(path);
+        assertEquals(1, reopened.size());
+        assertNull(reopened.get("ark:/99999/fk3b"));
+    }
+}
@@ -0,0 +1,59 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class ArkMetricsTest {
+
+    @Test
+    public void testPercentiles() {
+        ArkTimer timer = new ArkTimer();
+        for (int i = 1; i <= 100; i++) {
+            timer.record(i * 1_000_000L);
+        }
+        assertEquals(100, timer.getCount());
+        assertEquals(50.5, timer.getMean(), 0.001);
+        assertEquals(100, timer.getMax(), 0.001);
+        assertEquals(50, timer.getPercentile(0.5), 0.001);
+        assertEquals(95, timer.getPercentile(0.95), 0.001);
+        assertEquals(99, timer.getPercentile(0.99), 0.001);
+    }
+
+    @Test
+    public void testJmxAndRegistry() throws Exception {
+        List<String> received = new ArrayList<>();
+        ArkMetrics.addRegistry(new ArkMetricsRegistry() {
+            @Override
+            public void recordTime(String name, long durationNanos) {
+                received.add(name);
+            }
+
+            @Override
+            public void increment(String name) {
+                received.add(name);
+            }
+
+            @Override
+            public void gauge(String name, Supplier<Number> value) {
+            }
+        });
+        ArkMetrics.increment("test.counter");
+        ArkMetrics.recordTime("test.timer", 2_000_000L);
+        assertEquals(2, received.size());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ArkMetrics.OBJECT_NAME);
+        assertEquals(1L, server.getAttribute(name, "test.counter"));
+        assertEquals(1L, server.getAttribute(name, "test.timer.count"));
+        assertEquals(2.0, (Double) server.getAttribute(name, "test.timer.max"), 0.001);
+    }
+}
@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArkMetsFileTest {
+
+    private static final String METS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:mods=\"http://www.loc.gov/mods/v3\""
+            + " xmlns:goobi=\"http://meta.goobi.org/v1.5.1/\">\n"
+            + "<mets:dmdSec ID=\"DMDLOG_0000\"><mets:mdWrap MDTYPE=\"MODS\"><mets:xmlData><mods:mods><mods:extension><goobi:goobi>\n"
+            + "<goobi:metadata name=\"TitleDocMain\">Periodical</goobi:metadata>\n"
+            + "<goobi:metadata name=\"PublisherName\">Example Press</goobi:metadata>\n"
+            + "</goobi:goobi></mods:extension></mods:mods></mets:xmlData></mets:mdWrap></mets:dmdSec>\n"
+            + "<mets:dmdSec ID=\"DMDLOG_0001\"><mets:mdWrap MDTYPE=\"MODS\"><mets:xmlData><mods:mods><mods:extension><goobi:goobi>\n"
+            + "<goobi:metadata name=\"TitleDocMain\">Volume 1</goobi:metadata>\n"
+            + "<goobi:metadata name=\"Author\" type=\"person\"><goobi:lastName>Doe</goobi:lastName><goobi:firstName>Jane</goobi:firstName>"
+            + "</goobi:metadata>\n"
+            + "</goobi:goobi></mods:extension></mods:mods></mets:xmlData></mets:mdWrap></mets:dmdSec>\n"
+            + "<mets:structMap TYPE=\"LOGICAL\"><mets:div ID=\"LOG_0000\" DMDID=\"DMDLOG_0000\" TYPE=\"Periodical\">"
+            + "<mets:div ID=\"LOG_0001\" DMDID=\"DMDLOG_0001\" TYPE=\"PeriodicalVolume\"/></mets:div></mets:structMap>\n"
+            + "<mets:structMap TYPE=\"PHYSICAL\"><mets:div ID=\"PHYS_0000\" TYPE=\"BoundBook\"/></mets:structMap>\n"
+            + "</mets:mets>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadChildOfAnchor() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("meta.xml");
+        Files.write(path, METS.getBytes(StandardCharsets.UTF_8));
+
+        ArkMetsFile file = ArkMetsFile.read(path, "Periodical"::equals);
+        assertNotNull(file);
+        assertEquals("PeriodicalVolume", file.getDocStructType());
+        assertTrue(file.isAnchorChild());
+        assertEquals("Volume 1", file.getFirstValue("TitleDocMain"));
+        assertEquals("Doe, Jane", file.getFirstValue("Author"));
+        // metadata the volume does not have is taken from the anchor
+        assertEquals("Example Press", file.getFirstValue("PublisherName"));
+        assertTrue(file.getValues("PublisherName").isEmpty());
+        assertNull(file.getFirstValue("ARK"));
+    }
+
+    @Test
+    public void testAddMetadata() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("meta.xml");
+        Files.write(path, METS.getBytes(StandardCharsets.UTF_8));
+
+        ArkMetsFile file = ArkMetsFile.read(path, "Periodical"::equals);
+        assertTrue(file.addMetadata("ARK", "ark:/99999/fk3test", 1));
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve("meta.xml.1")));
+
+        ArkMetsFile reread = ArkMetsFile.read(path, "Periodical"::equals);
+        assertEquals("ark:/99999/fk3test", reread.getFirstValue("ARK"));
+        ArkMetsFile anchor = ArkMetsFile.read(path, type -> false);
+        assertNull(anchor.getFirstValue("ARK"));
+    }
+}
@@ -0,0 +1,87 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArkMintJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOpenEntriesAfterReopen() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("mint.log");
+        ArkMintJournal journal = ArkMintJournal.open(path);
+        long saved = journal.begin(1, "");
+        journal.minted(saved, "ark:/99999/fk3a");
+        journal.completed(saved);
+        long rejected = journal.begin(2, "");
+        journal.failed(rejected);
+        long unsaved = journal.begin(3, "0");
+        journal.minted(unsaved, "ark:/99999/fk3b");
+        journal.begin(4, "");
+
+        ArkMintJournal reopened = ArkMintJournal.open(path);
+        assertEquals(2, reopened.getOpenCount());
+        assertEquals("ark:/99999/fk3b", reopened.findMinted(3, "0").getArk());
+        assertNull(reopened.findMinted(3, ""));
+        assertNull(reopened.findMinted(4, ""));
+        // new ids continue after the ones in the file
+        assertTrue(reopened.begin(5, "") > unsaved);
+        // rotated on open
+        assertTrue(Files.exists(path.resolveSibling("mint.log.1")));
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("mint.log");
+        ArkMintJournal journal = ArkMintJournal.open(path);
+        journal.minted(journal.begin(1, ""), "ark:/99999/fk3a");
+        journal.minted(journal.begin(2, ""), "ark:/99999/fk3b");
+        journal.minted(journal.begin(3, ""), "ark:/99999/fk3c");
+        journal.begin(4, "");
+
+        List<String> reattached = new ArrayList<>();
+        int recovered = ArkMintJournal.open(path).recover(entry -> {
+            if (entry.getProcessId() == 2) {
+                throw new IOException("METS file is locked");
+            }
+            if (entry.getProcessId() == 3) {
+                // the element has another ARK
+                return false;
+            }
+            reattached.add(entry.getArk());
+            return true;
+        });
+        assertEquals(1, recovered);
+        assertEquals("ark:/99999/fk3a", reattached.get(0));
+
+        // only the entry that failed with an error is recovered again
+        ArkMintJournal reopened = ArkMintJournal.open(path);
+        assertEquals(1, reopened.getOpenCount());
+        assertEquals("ark:/99999/fk3b", reopened.findMinted(2, "").getArk());
+    }
+
+    @Test
+    public void testTornLineIsSkipped() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("mint.log");
+        ArkMintJournal journal = ArkMintJournal.open(path);
+        journal.minted(journal.begin(1, ""), "ark:/99999/fk3a");
+        Files.write(path, "M\t1".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertEquals("ark:/99999/fk3a", ArkMintJournal.open(path).findMinted(1, "").getArk());
+    }
+}
@@ -0,0 +1,122 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArkOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeArkServer server;
+    private ArkRestClient client;
+    private ArkOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeArkServer("user", "secret", 4);
+        ArkConnectionSettings settings = new ArkConnectionSettings();
+        settings.setSslContext(FakeArkServer.getClientSslContext());
+        client = new ArkRestClient(server.getUri(), "99999", "user", "secret", settings);
+        ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+        retryPolicy.setMaxAttempts(1);
+        client.setRetryPolicy(retryPolicy);
+        client.setCircuitBreaker(new ArkCircuitBreaker(server.getUri(), 100, 60000));
+    }
+
+    @After
+    public void tearDown() {
+        if (outbox != null) {
+            outbox.shutdown();
+        }
+        server.close();
+    }
+
+    @Test
+    public void testQueuedUpdatesOfAnArkAreSentOnce() throws Exception {
+        String ark = client.mintArk("fk4");
+        Path file = folder.getRoot().toPath().resolve("outbox.log");
+        // two updates of the same ARK were queued before a restart
+        Files.write(file, Arrays.asList("E\t1\t1\t" + ark + "\t_status=public&datacite.title=Volume+1",
+                "E\t2\t1\t" + ark + "\tdatacite.title=Volume+2"), StandardCharsets.UTF_8);
+        long requests = server.getRequests().get();
+
+        outbox = ArkOutbox.open(client, file, 10, 3, 60000);
+        waitUntilSent(outbox);
+        assertEquals(requests + 1, server.getRequests().get());
+        assertEquals("Volume 2", server.getMetadata(ark).get("datacite.title"));
+        assertEquals("public", server.getMetadata(ark).get("_status"));
+    }
+
+    @Test
+    public void testFailedUpdateDoesNotBlockOtherArks() throws Exception {
+        String failing = client.mintArk("fk4");
+        String other = client.mintArk("fk4");
+        outbox = ArkOutbox.open(client, folder.getRoot().toPath().resolve("outbox.log"), 1, 3, 60000);
+
+        server.setErrorRate(1);
+        long failed = server.getFailed().get();
+        outbox.enqueue(1, failing, metadata("Volume 1"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getFailed().get() == failed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        server.setErrorRate(0);
+
+        // the failed update waits for its next attempt, the update of the other ARK is sent meanwhile
+        outbox.enqueue(2, other, metadata("Volume 2"));
+        deadline = System.currentTimeMillis() + 10000;
+        while (outbox.getPendingCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, outbox.getPendingCount());
+        assertEquals("Volume 2", server.getMetadata(other).get("datacite.title"));
+        assertEquals(failed + 1, server.getFailed().get());
+    }
+
+    @Test
+    public void testShutdownClosesQueueFile() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("outbox.log");
+        ArkOutbox closed = ArkOutbox.open(client, file, 10, 3, 60000);
+        closed.shutdown();
+        try {
+            closed.enqueue(1, "ark:/99999/fk4test", metadata("Volume 1"));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, Files.size(file));
+
+        // the file can be opened again
+        outbox = ArkOutbox.open(client, file, 10, 3, 60000);
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    private static HashMap<String, String> metadata(String title) {
+        HashMap<String, String> metadata = new HashMap<>();
+        metadata.put("datacite.title", title);
+        return metadata;
+    }
+
+    private static void waitUntilSent(ArkOutbox outbox) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outbox.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(outbox.getPendingCount() == 0);
+    }
+}
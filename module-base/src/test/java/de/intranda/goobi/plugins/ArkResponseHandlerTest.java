@@ -0,0 +1,135 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+public class ArkResponseHandlerTest {
+
+    @Test
+    public void testParseMetadataResponse() throws Exception {
+        HttpResponse response = createResponse(200, "success: ark:/99999/fk4test\r\n_target: https://example.org/1\r\n"
+                + "datacite.title: Chronicle%3A volume 1\r\n", ContentType.TEXT_PLAIN);
+        ArkResponse result = ArkResponseHandler.toArkResponse(response, 1024);
+        assertTrue(result.isSuccess());
+        assertEquals("ark:/99999/fk4test", result.getIdentifier());
+        assertEquals("https://example.org/1", result.getMetadata().get("_target"));
+        assertEquals("Chronicle: volume 1", result.getMetadata().get("datacite.title"));
+    }
+
+    @Test
+    public void testErrorStatusLine() throws Exception {
+        ArkResponse result = ArkResponseHandler.toArkResponse(createResponse(200, "error: no such identifier", ContentType.TEXT_PLAIN), 1024);
+        assertFalse(result.isSuccess());
+        assertNull(result.getIdentifier());
+        assertEquals("no such identifier", result.getStatus());
+    }
+
+    @Test
+    public void testBodyIsBounded() throws Exception {
+        StringBuilder body = new StringBuilder("success: ark:/99999/fk4test\n");
+        for (int i = 0; i < 100; i++) {
+            body.append("datacite.title: a long title\n");
+        }
+        // the length is announced
+        try {
+            new ArkResponseHandler(100).handleResponse(createResponse(200, body.toString(), ContentType.TEXT_PLAIN));
+            fail();
+        } catch (ArkFatalException e) {
+            assertEquals(200, e.getStatusCode());
+        }
+        // chunked body without length
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8)));
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(entity);
+        try {
+            ArkResponseHandler.toArkResponse(response, 100);
+            fail();
+        } catch (ArkFatalException e) {
+            assertTrue(e.getMessage().contains("larger than 100 bytes"));
+        }
+    }
+
+    @Test
+    public void testOversizedChunkedBodyIsNotDrained() throws Exception {
+        // endless chunked body, closing the stream normally would read it up to the end like the pooled connection does
+        AtomicLong bytesRead = new AtomicLong();
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                bytesRead.incrementAndGet();
+                return 'x';
+            }
+        };
+        AtomicBoolean aborted = new AtomicBoolean();
+        EofSensorWatcher watcher = new EofSensorWatcher() {
+            @Override
+            public boolean eofDetected(InputStream wrapped) {
+                return true;
+            }
+
+            @Override
+            public boolean streamClosed(InputStream wrapped) throws IOException {
+                while (bytesRead.get() < 10 * 1024 * 1024) {
+                    wrapped.read();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean streamAbort(InputStream wrapped) {
+                aborted.set(true);
+                return true;
+            }
+        };
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new EofSensorInputStream(endless, watcher));
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(entity);
+        try {
+            ArkResponseHandler.toArkResponse(response, 1000);
+            fail();
+        } catch (ArkFatalException e) {
+            assertTrue(e.getMessage().contains("larger than 1000 bytes"));
+        }
+        assertTrue(aborted.get());
+        assertTrue(bytesRead.get() < 100 * 1024);
+    }
+
+    @Test
+    public void testHtmlErrorPageIsNotUsedAsMessage() throws Exception {
+        HttpResponse response = createResponse(400, "<html><body>" + "x".repeat(10000) + "</body></html>", ContentType.TEXT_HTML);
+        try {
+            new ArkResponseHandler().handleResponse(response);
+            fail();
+        } catch (ArkFatalException e) {
+            assertEquals("400: reason-> text/html response", e.getMessage());
+        }
+    }
+
+    private static HttpResponse createResponse(int status, String body, ContentType contentType) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "OK");
+        response.setEntity(new StringEntity(body, contentType.withCharset(StandardCharsets.UTF_8)));
+        return response;
+    }
+}
@@ -0,0 +1,201 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArkRestClientTest {
+
+    private FakeArkServer server;
+    private ArkRestClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeArkServer("user", "secret", 4);
+        ArkConnectionSettings settings = new ArkConnectionSettings();
+        settings.setSslContext(FakeArkServer.getClientSslContext());
+        client = new ArkRestClient(server.getUri(), "99999", "user", "secret", settings);
+        ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+        retryPolicy.setInitialDelay(1);
+        retryPolicy.setMaxDelay(5);
+        retryPolicy.setMaxAttempts(5);
+        client.setRetryPolicy(retryPolicy);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testMintAndUpdate() throws Exception {
+        ArkMetadata metadata = ArkMetadata.builder()
+                .set(ArkInternalEnumeration._target, "https://example.org/{pi.ark}")
+                .set(ArkDataCiteEnumeration.TITLE, "Chronicle: volume 1\n100%")
+                .build();
+        String ark = client.mintArkWithMetadata("fk4", metadata);
+        assertTrue(ark.startsWith("ark:/99999/fk4"));
+
+        Map<String, String> stored = client.getMetadataMap(ark);
+        assertEquals("Chronicle: volume 1\n100%", stored.get("datacite.title"));
+        assertEquals("https://example.org/" + ark, stored.get("_target"));
+
+        assertTrue(client.updateArk(ark, metadata.toBuilder().set(ArkDataCiteEnumeration.TITLE, "Volume 2").build()));
+        assertEquals("Volume 2", server.getMetadata(ark).get("datacite.title"));
+    }
+
+    @Test
+    public void testThrottledRequestsAreRepeated() throws Exception {
+        server.setMaxRequestsPerSecond(1);
+        server.setRetryAfter(1);
+        ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+        retryPolicy.setMaxDelay(1000);
+        retryPolicy.setMaxAttempts(3);
+        client.setRetryPolicy(retryPolicy);
+        ArkCircuitBreaker circuitBreaker = new ArkCircuitBreaker(server.getUri(), 1, 60000);
+        client.setCircuitBreaker(circuitBreaker);
+
+        // the second request in the same second is throttled and repeated after the Retry-After delay
+        String ark = client.mintArk("fk4");
+        assertEquals(ark, client.getMetadataMap(ark).get("success"));
+        assertTrue(server.getThrottled().get() > 0);
+        // throttling does not mean that the service is down
+        assertEquals(ArkCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testServerErrorsOpenCircuit() throws Exception {
+        server.setErrorRate(1);
+        client.setCircuitBreaker(new ArkCircuitBreaker(server.getUri(), 2, 60000));
+        ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+        retryPolicy.setInitialDelay(1);
+        retryPolicy.setMaxAttempts(2);
+        client.setRetryPolicy(retryPolicy);
+        try {
+            client.getMetadata("ark:/99999/fk4none");
+            fail();
+        } catch (ArkRetryableException e) {
+            assertEquals(503, e.getStatusCode());
+        }
+        long requests = server.getRequests().get();
+        try {
+            client.getMetadata("ark:/99999/fk4none");
+            fail();
+        } catch (ArkCircuitOpenException e) {
+            // no request was sent
+            assertEquals(requests, server.getRequests().get());
+        }
+    }
+
+    @Test
+    public void testFailedMintIsNotRepeated() throws Exception {
+        server.setErrorRate(1);
+        server.setErrorStatus(500);
+        client.setCircuitBreaker(new ArkCircuitBreaker(server.getUri(), 100, 60000));
+        try {
+            client.mintArk("fk4");
+            fail();
+        } catch (ArkRetryableException e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        // the service might have minted an ARK before it failed
+        assertEquals(1, server.getRequests().get());
+
+        // an idempotent request is repeated
+        try {
+            client.getMetadata("ark:/99999/fk4none");
+            fail();
+        } catch (ArkRetryableException e) {
+            assertEquals(6, server.getRequests().get());
+        }
+    }
+
+    @Test
+    public void testFailedTrialReleasesCircuit() throws Exception {
+        ArkCircuitBreaker circuitBreaker = new ArkCircuitBreaker(server.getUri(), 1, 0);
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.allowRequest());
+        // the trial request ended without a recorded outcome
+        assertFalse(circuitBreaker.allowRequest());
+        circuitBreaker.endRequest();
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(ArkCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testMetadataCache() throws Exception {
+        String ark = client.mintArk("fk4");
+        ArkMetadataCache cache = new ArkMetadataCache(10, 60000, true);
+        client.setMetadataCache(cache);
+
+        String body = client.getMetadata(ark);
+        long requests = server.getRequests().get();
+        assertEquals(body, client.getMetadata(ark));
+        assertEquals(ark, client.getMetadataMap(ark).get("success"));
+        assertEquals(requests, server.getRequests().get());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // an update removes the entry
+        client.updateArk(ark, ArkMetadata.builder().set(ArkDataCiteEnumeration.TITLE, "Volume 2").build());
+        assertEquals("Volume 2", client.getMetadataMap(ark).get("datacite.title"));
+    }
+
+    @Test
+    public void testResponseOlderThanUpdateIsNotCached() throws Exception {
+        ArkMetadataCache cache = new ArkMetadataCache(2, 60000, true);
+        String ark = "ark:/99999/fk4a";
+        // the metadata was requested, then the ARK was updated before the response arrived
+        long version = cache.getVersion();
+        cache.invalidate(ark);
+        assertFalse(cache.put(ark, "success: " + ark + "\ndatacite.title: Volume 1", null, null, version));
+        assertNull(cache.lookup(ark));
+
+        // the version of the ARK is still known after other ARKs were changed
+        for (int i = 0; i < 5; i++) {
+            cache.invalidate("ark:/99999/fk4other" + i);
+        }
+        assertFalse(cache.put(ark, "success: " + ark, null, null, version));
+        assertTrue(cache.put(ark, "success: " + ark, null, null, cache.getVersion()));
+    }
+
+    @Test
+    public void testStaleEntryIsRevalidated() throws Exception {
+        String ark = client.mintArk("fk4");
+        ArkMetadataCache cache = new ArkMetadataCache(10, 0, true);
+        client.setMetadataCache(cache);
+
+        String body = client.getMetadata(ark);
+        assertEquals(body, client.getMetadata(ark));
+        assertEquals(1, cache.getRevalidations());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testChangedSettingsDoNotCloseRunningRequests() throws Exception {
+        server.setMinLatency(300);
+        server.setMaxLatency(300);
+        CompletableFuture<String> running = client.mintArkAsync("fk4");
+        Thread.sleep(100);
+
+        // another step uses different settings for the same account while the request is running
+        ArkConnectionSettings changed = new ArkConnectionSettings();
+        changed.setSslContext(FakeArkServer.getClientSslContext());
+        changed.setMaxTotal(5);
+        ArkRestClient other = new ArkRestClient(server.getUri(), "99999", "user", "secret", changed);
+
+        assertTrue(running.get().startsWith("ark:/99999/fk4"));
+        // both clients use the new pool now
+        assertTrue(client.mintArk("fk4").startsWith("ark:/99999/fk4"));
+        assertTrue(other.mintArk("fk4").startsWith("ark:/99999/fk4"));
+    }
+}
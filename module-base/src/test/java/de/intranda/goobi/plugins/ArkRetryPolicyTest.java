@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ArkRetryPolicyTest {
+
+    @Test
+    public void testDelayGrowsAndIsBounded() {
+        ArkRetryPolicy policy = new ArkRetryPolicy();
+        policy.setMaxAttempts(10);
+        policy.setInitialDelay(100);
+        policy.setMaxDelay(1000);
+
+        long first = policy.getDelay(1, -1);
+        assertTrue(first >= 50 && first <= 100);
+        long third = policy.getDelay(3, -1);
+        assertTrue(third >= 200 && third <= 400);
+        long ninth = policy.getDelay(9, -1);
+        assertTrue(ninth >= 500 && ninth <= 1000);
+    }
+
+    @Test
+    public void testNoDelayAfterLastAttempt() {
+        ArkRetryPolicy policy = new ArkRetryPolicy();
+        policy.setMaxAttempts(2);
+        assertTrue(policy.getDelay(1, -1) >= 0);
+        assertEquals(-1, policy.getDelay(2, -1));
+    }
+
+    @Test
+    public void testRetryAfterIsHonoured() {
+        ArkRetryPolicy policy = new ArkRetryPolicy();
+        policy.setMaxDelay(5000);
+        assertEquals(2000, policy.getDelay(1, 2000));
+        assertEquals(-1, policy.getDelay(1, 60000));
+    }
+
+    @Test
+    public void testCircuitBreakerOpensAndRecovers() throws Exception {
+        ArkCircuitBreaker breaker = new ArkCircuitBreaker("test", 2, 50);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(ArkCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(ArkCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(false, breaker.allowRequest());
+
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest());
+        assertEquals(false, breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(ArkCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,107 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArkRoutingClientTest {
+
+    private FakeArkServer primary;
+    private FakeArkServer secondary;
+    private ArkRoutingClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        primary = new FakeArkServer("user", "secret", 2);
+        secondary = new FakeArkServer("user", "secret", 2);
+        ArkConnectionSettings settings = new ArkConnectionSettings();
+        settings.setSslContext(FakeArkServer.getClientSslContext());
+
+        ArkEndpoint main = new ArkEndpoint("primary", primary.getUri(), "99999", "user", "secret", "fk4", 1);
+        ArkEndpoint second = new ArkEndpoint("secondary", secondary.getUri(), "88888", "user", "secret", "fk5", 1);
+        client = new ArkRoutingClient(main, settings);
+        client.addEndpoint(main, createClient(main, settings), 3600);
+        client.addEndpoint(second, createClient(second, settings), 3600);
+    }
+
+    @After
+    public void tearDown() {
+        primary.close();
+        secondary.close();
+    }
+
+    @Test
+    public void testMintsAreDistributedAndUpdatesRouted() throws Exception {
+        ArkMetadata metadata = ArkMetadata.builder().set(ArkDataCiteEnumeration.TITLE, "Volume 1").build();
+        for (int i = 0; i < 40; i++) {
+            String ark = client.mintArkWithMetadata("fk4", metadata);
+            assertTrue(ark, ark.startsWith("ark:/99999/fk4") || ark.startsWith("ark:/88888/fk5"));
+            assertTrue(client.updateArk(ark, metadata.toBuilder().set(ArkDataCiteEnumeration.TITLE, "Volume 2").build()));
+            FakeArkServer owner = ark.startsWith("ark:/99999/") ? primary : secondary;
+            assertEquals("Volume 2", owner.getMetadata(ark).get("datacite.title"));
+        }
+        assertTrue(primary.getArkCount() > 0);
+        assertTrue(secondary.getArkCount() > 0);
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        primary.setErrorRate(1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(client.mintArk("fk4").startsWith("ark:/88888/fk5"));
+        }
+        // the circuit of the primary endpoint is open now
+        assertFalse(client.getEndpointHealth().get("primary"));
+        assertTrue(client.isAvailable());
+    }
+
+    @Test
+    public void testFailedMintIsNotSentToAnotherEndpoint() throws Exception {
+        primary.setErrorRate(1);
+        primary.setErrorStatus(500);
+        secondary.setErrorRate(1);
+        secondary.setErrorStatus(500);
+        try {
+            client.mintArk("fk4");
+            fail();
+        } catch (ArkRetryableException e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        // the first endpoint might have minted an ARK
+        assertEquals(1, primary.getRequests().get() + secondary.getRequests().get());
+    }
+
+    @Test
+    public void testChangedHealthCheckIntervalIsUsed() throws Exception {
+        ArkConnectionSettings settings = new ArkConnectionSettings();
+        settings.setSslContext(FakeArkServer.getClientSslContext());
+        ArkEndpoint main = new ArkEndpoint("primary", primary.getUri(), "99999", "user", "secret", "fk4", 1);
+        // a client created after the configuration changed
+        ArkRoutingClient reconfigured = new ArkRoutingClient(main, settings);
+        reconfigured.addEndpoint(main, createClient(main, settings), 1);
+        primary.close();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reconfigured.getEndpointHealth().get("primary") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(reconfigured.getEndpointHealth().get("primary"));
+        // the health check is shared by all clients of the account
+        assertFalse(client.getEndpointHealth().get("primary"));
+    }
+
+    private static ArkRestClient createClient(ArkEndpoint endpoint, ArkConnectionSettings settings) {
+        ArkRestClient client = new ArkRestClient(endpoint.getUri(), endpoint.getNaan(), endpoint.getApiUser(), endpoint.getApiPassword(), settings);
+        ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+        retryPolicy.setInitialDelay(1);
+        retryPolicy.setMaxAttempts(1);
+        client.setRetryPolicy(retryPolicy);
+        client.setCircuitBreaker(new ArkCircuitBreaker(endpoint.getKey(), 2, 60000));
+        return client;
+    }
+}
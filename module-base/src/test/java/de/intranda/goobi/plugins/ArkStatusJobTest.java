@@ -0,0 +1,115 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArkStatusJobTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeArkServer server;
+    private ArkConnectionSettings settings;
+    private final Map<Integer, String> arks = new HashMap<>();
+    private final List<Integer> processIds = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeArkServer("user", "secret", 4);
+        settings = new ArkConnectionSettings();
+        settings.setSslContext(FakeArkServer.getClientSslContext());
+        ArkRestClient client = createClient();
+        for (int processId = 1; processId <= 10; processId++) {
+            arks.put(processId, client.mintArk("fk4"));
+            processIds.add(processId);
+        }
+        Collections.shuffle(processIds);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testStatusValue() {
+        assertEquals("unavailable | withdrawn by request", ArkStatusJob.Status.parse(" Unavailable").toValue(" withdrawn by request "));
+        assertEquals("unavailable", ArkStatusJob.Status.UNAVAILABLE.toValue(null));
+        assertEquals("public", ArkStatusJob.Status.PUBLIC.toValue("ignored"));
+    }
+
+    @Test
+    public void testResumeAfterInterruption() throws Exception {
+        Path checkpoint = folder.getRoot().toPath().resolve("status.properties");
+
+        // the service becomes unavailable while the third batch is sent
+        ArkRestClient client = createClient();
+        ArkStatusJob.Summary first = new TestJob(client, processId -> {
+            if (processId == 7) {
+                client.getCircuitBreaker().recordFailure();
+            }
+        }).run(processIds, "collection", ArkStatusJob.Status.UNAVAILABLE, "withdrawn", checkpoint);
+        assertTrue(first.isInterrupted());
+        assertEquals(6, first.getChanged());
+        assertTrue(Files.exists(checkpoint));
+
+        List<Integer> handled = new ArrayList<>();
+        ArkStatusJob.Summary second = new TestJob(createClient(), handled::add)
+                .run(processIds, "collection", ArkStatusJob.Status.UNAVAILABLE, "withdrawn", checkpoint);
+        assertTrue(second.isSuccessful());
+        assertEquals(10, second.getChanged());
+        assertEquals(10, second.getProcesses());
+        assertEquals(List.of(7, 8, 9, 10), handled);
+        assertFalse(Files.exists(checkpoint));
+        for (String ark : arks.values()) {
+            assertEquals("unavailable | withdrawn", server.getMetadata(ark).get("_status"));
+        }
+    }
+
+    private ArkRestClient createClient() {
+        ArkRestClient client = new ArkRestClient(server.getUri(), "99999", "user", "secret", settings);
+        ArkRetryPolicy retryPolicy = new ArkRetryPolicy();
+        retryPolicy.setInitialDelay(1);
+        retryPolicy.setMaxAttempts(1);
+        client.setRetryPolicy(retryPolicy);
+        client.setCircuitBreaker(new ArkCircuitBreaker(server.getUri(), 1, 60000));
+        return client;
+    }
+
+    private interface Listener {
+        void lookup(int processId);
+    }
+
+    /**
+     * Takes the ARKs of the processes from the test instead of the database
+     */
+    private class TestJob extends ArkStatusJob {
+        private final Listener listener;
+
+        private TestJob(ArkRestClient client, Listener listener) {
+            super(null, client, 3);
+            this.listener = listener;
+        }
+
+        @Override
+        List<String> getArks(int processId) {
+            listener.lookup(processId);
+            return List.of(arks.get(processId));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ArkTemplateTest {
+
+    @Test
+    public void testCompile() {
+        ArkTemplate template = ArkTemplate.compile("{meta.TitleDocMain} ({meta.PublicationYear})");
+        assertEquals(2, template.getMetadataNames().size());
+        assertTrue(template.isStreamingSupported());
+        assertFalse(ArkTemplate.compile("{meta.topstruct.TitleDocMain}").isStreamingSupported());
+        assertFalse(ArkTemplate.compile("{metas.Author}").isStreamingSupported());
+        assertTrue(ArkTemplate.compile("https://example.org/{processtitle}/{pi.ark}").isStreamingSupported());
+    }
+
+    @Test
+    public void testCreateMetadata() {
+        ArkMetadataTemplates templates = new ArkMetadataTemplates("https://example.org/{pi.ark}", "{meta.Author}",
+                "{meta.TitleDocMain} ({meta.PublicationYear})", "{meta.PublicationYear}", "Example {processtitle}", "Text");
+        Map<String, String> values = new HashMap<>();
+        values.put("TitleDocMain", "Chronicle");
+        values.put("PublicationYear", "1901");
+        TestDocument document = new TestDocument(values);
+
+        ArkMetadata metadata = templates.createMetadata(document);
+        assertEquals("https://example.org/{pi.ark}", metadata.get(ArkInternalEnumeration._target));
+        assertEquals("", metadata.get(ArkDataCiteEnumeration.CREATOR));
+        assertEquals("Chronicle (1901)", metadata.get(ArkDataCiteEnumeration.TITLE));
+        assertEquals("Example process", metadata.get(ArkDataCiteEnumeration.PUBLISHER));
+        assertEquals("datacite", metadata.get(ArkInternalEnumeration._profile));
+        // metadata is read once, only the publisher needs the VariableReplacer
+        assertEquals(1, document.reads);
+        assertEquals(1, document.replacements);
+    }
+
+    private static class TestDocument implements ArkMetsDocument {
+        private final Map<String, String> values;
+        private int reads;
+        private int replacements;
+
+        private TestDocument(Map<String, String> values) {
+            this.values = values;
+        }
+
+        @Override
+        public String replace(String template) {
+            replacements++;
+            return template.replace("{processtitle}", "process");
+        }
+
+        @Override
+        public Map<String, String> getFirstValues(Set<String> names) {
+            reads++;
+            Map<String, String> result = new HashMap<>(values);
+            result.keySet().retainAll(names);
+            return result;
+        }
+
+        @Override
+        public List<String> getExistingArks() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String getElementPath() {
+            return "";
+        }
+
+        @Override
+        public boolean isArkAllowed() {
+            return true;
+        }
+
+        @Override
+        public void addArkAndSave(String ark) {
+        }
+    }
+}
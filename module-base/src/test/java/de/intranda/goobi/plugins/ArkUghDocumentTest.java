@@ -0,0 +1,59 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
+import ugh.dl.Metadata;
+import ugh.dl.MetadataType;
+
+public class ArkUghDocumentTest {
+
+    @Test
+    public void testAnchorMetadataIsUsedForVolume() throws Exception {
+        MetadataType title = createMetadataType("TitleDocMain");
+        MetadataType publisher = createMetadataType("PublisherName");
+        DigitalDocument dd = new DigitalDocument();
+        DocStruct anchor = dd.createDocStruct(createDocStructType("Periodical", true, title, publisher));
+        DocStruct volume = dd.createDocStruct(createDocStructType("PeriodicalVolume", false, title, publisher));
+        addMetadata(anchor, title, "Periodical");
+        addMetadata(anchor, publisher, "Example Press");
+        addMetadata(volume, title, "Volume 1");
+
+        ArkTemplate template = ArkTemplate.compile("{meta.TitleDocMain} / {meta.PublisherName}");
+        Map<String, String> values = ArkUghDocument.getFirstValues(volume, anchor, template.getMetadataNames());
+        assertEquals("Volume 1 / Example Press", template.apply(values, null));
+        // without an anchor only the metadata of the element is used
+        values = ArkUghDocument.getFirstValues(volume, null, template.getMetadataNames());
+        assertEquals("Volume 1 / ", template.apply(values, null));
+    }
+
+    private static MetadataType createMetadataType(String name) {
+        MetadataType type = new MetadataType();
+        type.setName(name);
+        return type;
+    }
+
+    private static DocStructType createDocStructType(String name, boolean anchor, MetadataType... metadataTypes) {
+        DocStructType type = new DocStructType();
+        type.setName(name);
+        if (anchor) {
+            type.setAnchorClass("MODS");
+        }
+        for (MetadataType metadataType : metadataTypes) {
+            type.addMetadataType(metadataType, "*", false, false);
+        }
+        return type;
+    }
+
+    private static void addMetadata(DocStruct ds, MetadataType type, String value) throws Exception {
+        Metadata md = new Metadata(type);
+        md.setValue(value);
+        ds.addMetadata(md);
+    }
+}
@@ -0,0 +1,262 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * In-process stand-in for the ARKetype service. It mints ARKs on any shoulder, stores their ANVL metadata in memory and answers GET, POST and
+ * DELETE on id/. GET responses carry an ETag and are answered with 304 if it matches If-None-Match. Latency, random server errors and throttling with 429 can be configured to test retries and pooling without the real
+ * service. It uses the self-signed certificate in fake-ark-keystore.p12, clients have to use {@link #getClientSslContext()}.
+ */
+public class FakeArkServer implements AutoCloseable {
+
+    private static final String KEYSTORE = "/fake-ark-keystore.p12";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    static {
+        // the JDK server writes headers and body separately, without this every response waits for the delayed ACK of the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpsServer server;
+    private final ExecutorService executor;
+    private final String authorization;
+
+    private final Map<String, Map<String, String>> arks = new ConcurrentHashMap<>();
+    private final AtomicLong counter = new AtomicLong();
+
+    // minimum and maximum delay of every response in milliseconds
+    @Setter
+    private volatile int minLatency;
+    @Setter
+    private volatile int maxLatency;
+    // fraction of requests that fail with the error status
+    @Setter
+    private volatile double errorRate;
+    @Setter
+    private volatile int errorStatus = 503;
+    // requests per second that are accepted, further requests get 429, 0 disables the limit
+    @Setter
+    private volatile int maxRequestsPerSecond;
+    // value of the Retry-After header of 429 and 503 responses in seconds, negative to send no header
+    @Setter
+    private volatile int retryAfter = -1;
+
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger requestsInSecond = new AtomicInteger();
+
+    @Getter
+    private final AtomicLong requests = new AtomicLong();
+    @Getter
+    private final AtomicLong throttled = new AtomicLong();
+    @Getter
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Starts a server that accepts any credentials
+     */
+    public FakeArkServer() throws IOException, GeneralSecurityException {
+        this(null, null, 16);
+    }
+
+    /**
+     * @param user expected API user, null accepts any credentials
+     * @param password expected password
+     * @param threads number of threads that handle requests
+     */
+    public FakeArkServer(String user, String password, int threads) throws IOException, GeneralSecurityException {
+        authorization = user == null ? null : "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(loadKeyStore(), PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/", this::handle);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return base URL of the server
+     */
+    public String getUri() {
+        return "https://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param ark ARK
+     * @return stored metadata or null if the ARK does not exist
+     */
+    public Map<String, String> getMetadata(String ark) {
+        return arks.get(ark);
+    }
+
+    /**
+     * @return number of ARKs that exist
+     */
+    public int getArkCount() {
+        return arks.size();
+    }
+
+    /**
+     * @return SSL context that trusts the certificate of the server
+     */
+    public static SSLContext getClientSslContext() throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(loadKeyStore());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Map<String, String> body = new LinkedHashMap<>();
+        try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            ArkAnvl.parse(reader, body::put);
+        }
+        delay();
+
+        // like the real service, reading metadata needs no credentials
+        if (authorization != null && !"GET".equals(exchange.getRequestMethod())
+                && !authorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+            send(exchange, 401, "error: unauthorized");
+            return;
+        }
+        if (isThrottled()) {
+            throttled.incrementAndGet();
+            send(exchange, 429, "error: too many requests");
+            return;
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            failed.incrementAndGet();
+            send(exchange, errorStatus, "error: service unavailable");
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if ("HEAD".equals(method)) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        } else if (path.startsWith("/shoulder/") && "POST".equals(method)) {
+            String ark = path.substring("/shoulder/".length()) + Long.toString(counter.incrementAndGet(), 36);
+            arks.put(ark, new ConcurrentHashMap<>(body));
+            send(exchange, 201, "success: " + ark);
+        } else if (path.startsWith("/id/")) {
+            String ark = path.substring("/id/".length());
+            Map<String, String> metadata = arks.get(ark);
+            if (metadata == null) {
+                send(exchange, 400, "error: bad request - no such identifier");
+            } else if ("GET".equals(method)) {
+                String response = "success: " + ark + "\n" + ArkAnvl.encode(metadata, null);
+                String etag = "\"" + Integer.toHexString(response.hashCode()) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                } else {
+                    send(exchange, 200, response);
+                }
+            } else if ("POST".equals(method) && "reserved".equals(body.get("_status"))
+                    && !"reserved".equals(metadata.getOrDefault("_status", "public"))) {
+                // like the real service, an identifier that was public once cannot be reserved again
+                send(exchange, 400, "error: bad request - identifier status cannot be changed to reserved");
+            } else if ("POST".equals(method)) {
+                metadata.putAll(body);
+                send(exchange, 200, "success: " + ark);
+            } else if ("DELETE".equals(method)) {
+                arks.remove(ark);
+                send(exchange, 200, "success: " + ark);
+            } else {
+                send(exchange, 405, "error: method not allowed");
+            }
+        } else {
+            send(exchange, 400, "error: bad request - no such resource");
+        }
+    }
+
+    private void delay() {
+        int min = minLatency;
+        int max = Math.max(min, maxLatency);
+        if (max <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextInt(min, max + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isThrottled() {
+        int limit = maxRequestsPerSecond;
+        if (limit <= 0) {
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long previous = currentSecond.get();
+        if (previous != second && currentSecond.compareAndSet(previous, second)) {
+            requestsInSecond.set(0);
+        }
+        return requestsInSecond.incrementAndGet() > limit;
+    }
+
+    private void send(HttpExchange exchange, int status, String response) throws IOException {
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        if ((status == 429 || status == 503) && retryAfter >= 0) {
+            exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfter));
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = FakeArkServer.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, PASSWORD);
+        }
+        return keyStore;
+    }
+}
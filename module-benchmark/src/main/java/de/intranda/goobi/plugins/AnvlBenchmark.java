@@ -0,0 +1,75 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of building and validating the ANVL body of a single identifier
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnvlBenchmark {
+
+    private ArkRestClient client;
+    private HashMap<String, String> metadata;
+    private String title;
+    private String body;
+
+    @Setup
+    public void setup() {
+        client = new ArkRestClient("https://localhost/", "99999", "user", "password");
+        metadata = ArkBenchmarks.createMetadata();
+        title = metadata.get(ArkDataCiteEnumeration.TITLE.toString());
+        body = "success: ark:/99999/fk4test\n" + client.createMetadataBodyString(metadata, "ark:/99999/fk4test");
+    }
+
+    @Benchmark
+    public String createMetadataBodyString() {
+        return client.createMetadataBodyString(metadata, "ark:/99999/fk4test");
+    }
+
+    @Benchmark
+    public String escapeAnvl() {
+        return client.escapeAnvl(title);
+    }
+
+    @Benchmark
+    public HashMap<String, String> validateKeysOfMetadataHashMap() {
+        client.validateKeysOfMetadataHashMap(metadata);
+        return metadata;
+    }
+
+    @Benchmark
+    public void writeEntity(Blackhole blackhole) throws IOException {
+        new ArkAnvlEntity(metadata, "ark:/99999/fk4test").writeTo(new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+        });
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, String> parse() {
+        return ArkAnvl.parse(body);
+    }
+}
@@ -0,0 +1,37 @@
+package de.intranda.goobi.plugins;
+
+import java.util.HashMap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line options and always adds the GC profiler, so the allocation rate per
+ * operation is reported next to the throughput.
+ */
+public class ArkBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+    }
+
+    /**
+     * @return metadata of a typical identifier
+     */
+    static HashMap<String, String> createMetadata() {
+        HashMap<String, String> metadata = new HashMap<>();
+        metadata.put(ArkInternalEnumeration._profile.toString(), "datacite");
+        metadata.put(ArkInternalEnumeration._target.toString(), "https://viewer.example.org/viewer/resolver?urn={pi.ark}");
+        metadata.put(ArkDataCiteEnumeration.CREATOR.toString(), "Doe, Jane");
+        metadata.put(ArkDataCiteEnumeration.TITLE.toString(), "Chronicle of the city: volume 1, 1850%1900\nwith appendix");
+        metadata.put(ArkDataCiteEnumeration.PUBLICATIONYEAR.toString(), "1901");
+        metadata.put(ArkDataCiteEnumeration.PUBLISHER.toString(), "Example Press");
+        metadata.put(ArkDataCiteEnumeration.RESOURCETYPE.toString(), "Text");
+        return metadata;
+    }
+}
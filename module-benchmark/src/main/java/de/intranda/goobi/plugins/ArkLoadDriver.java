@@ -0,0 +1,136 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many simulated plugin steps in parallel against the fake ARK server and reports throughput, step latency, retries and the behaviour of
+ * the server. Every step mints an ARK with DataCite metadata and a target that contains the new ARK, a re-run step additionally updates it.
+ * <p>
+ * Options are given as --name=value:
+ * <ul>
+ * <li>steps: number of steps, default 1000</li>
+ * <li>concurrency: steps running at the same time, default 10</li>
+ * <li>rerun: fraction of steps that also send an update, default 0.5</li>
+ * <li>latency: server latency in milliseconds as min-max, default 20-50</li>
+ * <li>errorRate: fraction of requests that fail with 503, default 0</li>
+ * <li>maxRequestsPerSecond: server side throttling with 429, default 0 (off)</li>
+ * <li>retryAfter: Retry-After header of 429 and 503 in seconds, default -1 (none)</li>
+ * <li>rateLimit: client side requests per second, default 0 (off)</li>
+ * <li>maxPerRoute: size of the connection pool, default 10</li>
+ * <li>serverThreads: threads of the fake server, default 32</li>
+ * </ul>
+ */
+public class ArkLoadDriver {
+
+    private final Map<String, String> options;
+
+    private final ArkTimer stepTimer = new ArkTimer();
+    private final AtomicInteger successful = new AtomicInteger();
+    private final AtomicInteger deferred = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public ArkLoadDriver(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                System.err.println("Unknown argument " + arg + ", expected --name=value");
+                System.exit(1);
+            }
+        }
+        new ArkLoadDriver(options).run();
+        ArkConnectionPool.shutdown();
+    }
+
+    public void run() throws IOException, GeneralSecurityException, InterruptedException {
+        int steps = getInt("steps", 1000);
+        int concurrency = getInt("concurrency", 10);
+        double rerun = getDouble("rerun", 0.5);
+        String[] latency = options.getOrDefault("latency", "20-50").split("-");
+
+        try (FakeArkServer server = new FakeArkServer("loaduser", "loadpassword", getInt("serverThreads", 32))) {
+            server.setMinLatency(Integer.parseInt(latency[0]));
+            server.setMaxLatency(Integer.parseInt(latency[latency.length - 1]));
+            server.setErrorRate(getDouble("errorRate", 0));
+            server.setMaxRequestsPerSecond(getInt("maxRequestsPerSecond", 0));
+            server.setRetryAfter(getInt("retryAfter", -1));
+
+            ArkConnectionSettings settings = new ArkConnectionSettings();
+            settings.setSslContext(FakeArkServer.getClientSslContext());
+            settings.setMaxPerRoute(getInt("maxPerRoute", 10));
+            settings.setMaxTotal(Math.max(settings.getMaxTotal(), settings.getMaxPerRoute()));
+            ArkRestClient client = new ArkRestClient(server.getUri(), "99999", "loaduser", "loadpassword", settings);
+            double rateLimit = getDouble("rateLimit", 0);
+            if (rateLimit > 0) {
+                client.setRateLimiter(ArkRateLimiter.getInstance(server.getUri(), "loaduser", rateLimit, 10));
+            }
+            ArkMetrics.reset();
+
+            ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            long start = System.nanoTime();
+            for (int i = 0; i < steps; i++) {
+                boolean update = i < steps * rerun;
+                int number = i;
+                executor.execute(() -> runStep(client, number, update));
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.HOURS);
+            long duration = System.nanoTime() - start;
+
+            System.out.println(String.format("%d steps with concurrency %d in %.1f s: %.1f steps/s", steps, concurrency, duration / 1e9,
+                    steps / (duration / 1e9)));
+            System.out.println(String.format("successful %d, deferred %d, failed %d", successful.get(), deferred.get(), failed.get()));
+            System.out.println(String.format("step latency ms: mean %.1f, p50 %.1f, p95 %.1f, p99 %.1f, max %.1f", stepTimer.getMean(),
+                    stepTimer.getPercentile(0.5), stepTimer.getPercentile(0.95), stepTimer.getPercentile(0.99), stepTimer.getMax()));
+            System.out.println(String.format("server: %d requests, %d throttled, %d failed, %d ARKs", server.getRequests().get(),
+                    server.getThrottled().get(), server.getFailed().get(), server.getArkCount()));
+            ArkMetrics.snapshot().forEach((name, value) -> System.out.println(name + " = " + value));
+        }
+    }
+
+    private void runStep(ArkRestClient client, int number, boolean update) {
+        long start = System.nanoTime();
+        try {
+            ArkMetadata metadata = ArkMetadata.builder()
+                    .set(ArkInternalEnumeration._profile, "datacite")
+                    .set(ArkInternalEnumeration._target, "https://viewer.example.org/viewer/resolver?urn={pi.ark}")
+                    .set(ArkDataCiteEnumeration.CREATOR, "Doe, Jane")
+                    .set(ArkDataCiteEnumeration.TITLE, "Chronicle of the city: volume " + number)
+                    .set(ArkDataCiteEnumeration.PUBLICATIONYEAR, "1901")
+                    .set(ArkDataCiteEnumeration.PUBLISHER, "Example Press")
+                    .set(ArkDataCiteEnumeration.RESOURCETYPE, "Text")
+                    .build();
+            String ark = client.mintArkWithMetadata("fk4", metadata);
+            if (update) {
+                client.updateArk(ark, metadata.toBuilder().set(ArkDataCiteEnumeration.PUBLICATIONYEAR, "1902").build());
+            }
+            successful.incrementAndGet();
+        } catch (ArkCircuitOpenException e) {
+            deferred.incrementAndGet();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+        } finally {
+            stepTimer.record(System.nanoTime() - start);
+        }
+    }
+
+    private int getInt(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+}
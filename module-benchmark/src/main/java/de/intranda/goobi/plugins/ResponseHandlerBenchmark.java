@@ -0,0 +1,70 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reading a typical response of the ARK service
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseHandlerBenchmark {
+
+    private ArkResponseHandler handler;
+    private HttpResponse mintResponse;
+    private HttpResponse metadataResponse;
+
+    @Setup
+    public void setup() {
+        handler = new ArkResponseHandler();
+        mintResponse = createResponse(201, "success: ark:/99999/fk4test");
+        metadataResponse = createResponse(200, "success: ark:/99999/fk4test\n" + client().createMetadataBodyString(ArkBenchmarks.createMetadata(),
+                "ark:/99999/fk4test"));
+    }
+
+    @Benchmark
+    public String handleMintResponse() throws IOException {
+        return handler.handleResponse(mintResponse);
+    }
+
+    @Benchmark
+    public String handleMetadataResponse() throws IOException {
+        return handler.handleResponse(metadataResponse);
+    }
+
+    @Benchmark
+    public ArkResponse parseMetadataResponse() throws IOException {
+        return ArkResponseHandler.toArkResponse(metadataResponse, ArkResponseHandler.DEFAULT_MAX_BODY_SIZE);
+    }
+
+    private static ArkRestClient client() {
+        return new ArkRestClient("https://localhost/", "99999", "user", "password");
+    }
+
+    private static HttpResponse createResponse(int status, String body) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, "OK");
+        // string entities are repeatable, so the same response can be read in every invocation
+        response.setEntity(new StringEntity(body, ContentType.create("text/plain", "UTF-8")));
+        return response;
+    }
+}
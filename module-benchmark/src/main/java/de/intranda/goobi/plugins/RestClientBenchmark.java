@@ -0,0 +1,63 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of minting an ARK and updating its metadata over a pooled TLS connection to the in-process fake ARK server
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RestClientBenchmark {
+
+    private FakeArkServer server;
+    private ArkRestClient client;
+    private HashMap<String, String> metadata;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, GeneralSecurityException {
+        server = new FakeArkServer();
+        ArkConnectionSettings settings = new ArkConnectionSettings();
+        settings.setSslContext(FakeArkServer.getClientSslContext());
+        client = new ArkRestClient(server.getUri(), "99999", "user", "password", settings);
+        metadata = ArkBenchmarks.createMetadata();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ArkConnectionPool.shutdown();
+        server.close();
+    }
+
+    @Benchmark
+    public boolean mintAndUpdate() throws IOException {
+        String ark = client.mintArk("fk4");
+        return client.updateArk(ark, metadata);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean mintAndUpdateConcurrent() throws IOException {
+        return mintAndUpdate();
+    }
+}